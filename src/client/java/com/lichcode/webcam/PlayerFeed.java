@@ -0,0 +1,73 @@
+package com.lichcode.webcam;
+
+import com.lichcode.webcam.render.image.RenderableImage;
+import com.lichcode.webcam.video.DecodedFrame;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Everything known about one player's video. Frames are published with a single atomic swap, so the render thread
+ * only ever sees whole frames, and it can read the newest one without locking.
+ */
+public class PlayerFeed {
+    private static final double FPS_SMOOTHING = 0.1;
+
+    public final UUID playerUUID;
+    // Owned by the render thread
+    public final RenderableImage image = new RenderableImage();
+    private final AtomicReference<DecodedFrame> latest = new AtomicReference<>();
+
+    // Written by the network thread only
+    public volatile long lastFrameTime = System.nanoTime();
+    public volatile double fps = 0;
+    public volatile long framesReceived = 0;
+    public volatile long bytesReceived = 0;
+
+    public PlayerFeed(UUID playerUUID) {
+        this.playerUUID = playerUUID;
+    }
+
+    public void recordReceived(int bytes) {
+        long now = System.nanoTime();
+        if (framesReceived > 0) {
+            double instantFps = 1_000_000_000.0 / Math.max(1, now - lastFrameTime);
+            fps = fps == 0 ? instantFps : fps + (instantFps - fps) * FPS_SMOOTHING;
+        }
+        lastFrameTime = now;
+        framesReceived++;
+        bytesReceived += bytes;
+    }
+
+    public void publish(DecodedFrame frame) {
+        // The skipped frame's changed tiles still have to be uploaded. If the render thread takes it while we
+        // merge, the swap fails and we merge again, uploading a few tiles twice is harmless.
+        DecodedFrame skipped;
+        do {
+            skipped = latest.get();
+            frame.include(skipped);
+        } while (!latest.compareAndSet(skipped, frame));
+
+        if (skipped != null) {
+            skipped.release();
+        }
+    }
+
+    /**
+     * Takes the newest decoded frame, or null if none arrived since the last call.
+     */
+    public DecodedFrame take() {
+        return latest.getAndSet(null);
+    }
+
+    /**
+     * Frees everything, must be called on the render thread.
+     */
+    public void close() {
+        image.close();
+        DecodedFrame pending = take();
+        if (pending != null) {
+            pending.release();
+        }
+    }
+}
@@ -1,26 +1,64 @@
 package com.lichcode.webcam;
 
 import com.lichcode.webcam.Video.PlayerVideo;
-import com.lichcode.webcam.render.image.RenderableImage;
+import com.lichcode.webcam.video.DecodedFrame;
+import com.lichcode.webcam.video.FrameDecoder;
 
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * The video feeds of every player we received video from. Written by the network and decoder threads,
+ * read by the render thread.
+ */
 public class PlayerFeeds {
-    public static HashMap<String, PlayerVideo> videos = new HashMap<>();
-    public static HashMap<String, RenderableImage> images = new HashMap<>();
+    private static final ConcurrentHashMap<UUID, PlayerFeed> feeds = new ConcurrentHashMap<>();
 
-    public static RenderableImage get(String uuid) {
-        return images.get(uuid);
+    public static PlayerFeed get(UUID uuid) {
+        return feeds.get(uuid);
     }
 
-    public static PlayerVideo getPlayerVideo(String uuid) {
-        return videos.get(uuid);
+    public static Collection<PlayerFeed> all() {
+        return feeds.values();
+    }
+
+    public static int size() {
+        return feeds.size();
+    }
+
+    public static PlayerFeed remove(UUID uuid) {
+        return feeds.remove(uuid);
     }
 
     public static void update(PlayerVideo video) {
-        videos.put(video.playerUUID, video);
-        RenderableImage image = images.getOrDefault(video.playerUUID, new RenderableImage());
-        image.fill(video);
-        images.put(video.playerUUID, image);
+        feeds.computeIfAbsent(video.playerUUID, PlayerFeed::new).recordReceived(video.frameLength);
+        if (video.isHeartbeat()) {
+            // Their picture hasn't changed, the one we have stays up
+            video.release();
+            return;
+        }
+        // Decoding happens on the decoder threads once the face is drawn, the result comes back through publish
+        FrameDecoder.submit(video);
+    }
+
+    /**
+     * Shows our own camera frame, it never goes through the network or the decoder.
+     */
+    public static void publishLocal(DecodedFrame frame) {
+        PlayerFeed feed = feeds.computeIfAbsent(frame.playerUUID, PlayerFeed::new);
+        feed.recordReceived(0);
+        feed.publish(frame);
+    }
+
+    public static void publish(DecodedFrame frame) {
+        PlayerFeed feed = feeds.get(frame.playerUUID);
+        if (feed == null) {
+            // The feed was dropped while the frame was decoding
+            frame.release();
+            return;
+        }
+
+        feed.publish(frame);
     }
 }
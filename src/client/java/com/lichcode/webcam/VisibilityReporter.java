@@ -0,0 +1,71 @@
+package com.lichcode.webcam;
+
+import net.fabricmc.fabric.api.client.networking.v1.ClientPlayNetworking;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.entity.player.PlayerEntity;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Tells the server whose faces we drew, so it only sends us video we can see.
+ * The face renderer only runs for players inside the view frustum, on top of that players behind blocks are left out.
+ * Everything in here runs on the render thread.
+ */
+public class VisibilityReporter {
+    private static final int REPORT_INTERVAL_TICKS = 10;
+    // Resend an unchanged set every now and then so the server's keepalive doesn't run out
+    private static final int REFRESH_INTERVAL_TICKS = 100;
+
+    private static final Set<UUID> rendered = new HashSet<>();
+    private static Set<UUID> lastReported = null;
+    private static int ticks = 0;
+    private static int ticksSinceReport = 0;
+
+    /**
+     * Called by the face renderer for every player it draws, whether or not we have video for them yet.
+     */
+    public static void markRendered(UUID playerUUID) {
+        rendered.add(playerUUID);
+    }
+
+    public static void tick(MinecraftClient client) {
+        ticksSinceReport++;
+        if (++ticks < REPORT_INTERVAL_TICKS) {
+            return;
+        }
+        ticks = 0;
+
+        if (client.player == null || client.world == null || !ClientPlayNetworking.canSend(SubscriptionPayload.ID)) {
+            rendered.clear();
+            return;
+        }
+
+        Set<UUID> visible = new HashSet<>();
+        for (UUID playerUUID : rendered) {
+            PlayerEntity player = client.world.getPlayerByUuid(playerUUID);
+            if (player != null && player != client.player && client.player.canSee(player)) {
+                visible.add(playerUUID);
+            }
+        }
+        rendered.clear();
+
+        if (visible.equals(lastReported) && ticksSinceReport < REFRESH_INTERVAL_TICKS) {
+            return;
+        }
+        lastReported = visible;
+        ticksSinceReport = 0;
+        List<UUID> players = new ArrayList<>(visible);
+        ClientPlayNetworking.send(new SubscriptionPayload(players));
+    }
+
+    public static void reset() {
+        rendered.clear();
+        lastReported = null;
+        ticks = 0;
+        ticksSinceReport = 0;
+    }
+}
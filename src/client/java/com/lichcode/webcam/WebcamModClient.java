@@ -1,24 +1,37 @@
 package com.lichcode.webcam;
 
+import com.lichcode.webcam.Video.FrameReassembler;
+import com.lichcode.webcam.Video.PlayerVideo;
+import com.lichcode.webcam.render.DebugOverlay;
+import com.lichcode.webcam.render.FaceBatchRenderer;
+import com.lichcode.webcam.render.FaceTextureManager;
 import com.lichcode.webcam.render.PlayerFaceRenderer;
+import com.lichcode.webcam.render.texture.FaceTextureArray;
 
 import com.lichcode.webcam.screen.SettingsScreen;
 import com.lichcode.webcam.video.VideoManager;
 import net.fabricmc.api.ClientModInitializer;
 import net.fabricmc.fabric.api.client.command.v2.ClientCommandManager;
 import net.fabricmc.fabric.api.client.command.v2.ClientCommandRegistrationCallback;
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientTickEvents;
 import net.fabricmc.fabric.api.client.networking.v1.ClientPlayConnectionEvents;
 import net.fabricmc.fabric.api.client.networking.v1.ClientPlayNetworking;
 import net.fabricmc.fabric.api.client.rendering.v1.*;
+import net.fabricmc.fabric.api.client.screen.v1.ScreenEvents;
 
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.render.entity.PlayerEntityRenderer;
+import net.minecraft.text.Text;
 
 
 public class WebcamModClient implements ClientModInitializer {
+	// Only used on the client thread
+	private static final FrameReassembler reassembler = new FrameReassembler();
+
 	@Override
 	public void onInitializeClient() {
 		registerSettingsCommand();
+		registerStatsCommand();
 
 		LivingEntityFeatureRendererRegistrationCallback.EVENT.register((entityType, entityRenderer, registrationHelper, context) -> {
 			if (entityRenderer instanceof PlayerEntityRenderer) {
@@ -26,16 +39,59 @@ public class WebcamModClient implements ClientModInitializer {
 			}
 		});
 
+		// Faces are collected while entities render and drawn in one go afterwards
+		WorldRenderEvents.START.register(context -> {
+			FaceBatchRenderer.clear();
+			FaceTextureArray.nextFrame();
+		});
+		WorldRenderEvents.AFTER_ENTITIES.register(context -> FaceBatchRenderer.flush());
+		// Screens like the inventory render players too
+		ScreenEvents.AFTER_INIT.register((client, screen, scaledWidth, scaledHeight) -> {
+			ScreenEvents.afterRender(screen).register((renderedScreen, drawContext, mouseX, mouseY, tickDelta) -> FaceBatchRenderer.flush());
+		});
+
 		ClientPlayConnectionEvents.JOIN.register((handler, sender, client) -> {
 			VideoManager.startCameraLoop();
 		});
 
 		ClientPlayConnectionEvents.DISCONNECT.register(((handler, client) -> {
 			VideoManager.stopThread();
+			VisibilityReporter.reset();
+			// GL objects can only be deleted on the render thread
+			client.execute(() -> {
+				FaceTextureManager.releaseAll();
+				reassembler.clear();
+			});
+		}));
+
+		ClientTickEvents.END_CLIENT_TICK.register(FaceTextureManager::tick);
+		ClientTickEvents.END_CLIENT_TICK.register(VisibilityReporter::tick);
+		HudRenderCallback.EVENT.register(DebugOverlay::render);
+
+		ClientPlayNetworking.registerGlobalReceiver(VideoFragmentPayload.ID, ((payload, context) -> {
+			PlayerVideo video;
+			try {
+				video = reassembler.accept(payload.playerUUID(), payload);
+			} catch (RuntimeException e) {
+				WebcamMod.LOGGER.warn("Dropping invalid video frame: {}", e.getMessage());
+				reassembler.remove(payload.playerUUID());
+				return;
+			}
+			if (video != null) {
+				PlayerFeeds.update(video);
+			}
 		}));
 
-		ClientPlayNetworking.registerGlobalReceiver(VideoFramePayload.ID, ((payload, context) -> {
-			PlayerFeeds.update(payload.video());
+		ClientPlayNetworking.registerGlobalReceiver(StreamSettingsPayload.ID, ((payload, context) -> {
+			VideoManager.setServerLimits(payload);
+			// No stream can be bigger than this, sizing the layers for it now means the texture array
+			// never has to be reallocated (and every face uploaded again) when someone's stream grows
+			FaceTextureArray.ensureSize(payload.maxWidth(), payload.maxHeight());
+		}));
+
+		// Someone started watching us, they need a whole frame to apply deltas to
+		ClientPlayNetworking.registerGlobalReceiver(KeyframeRequestPayload.ID, ((payload, context) -> {
+			VideoManager.requestKeyframe();
 		}));
 	}
 
@@ -50,4 +106,19 @@ public class WebcamModClient implements ClientModInitializer {
 			}));
 		}));
 	}
+
+	// Not under /webcam, a client side /webcam would hide the server's /webcam command
+	private void registerStatsCommand() {
+		ClientCommandRegistrationCallback.EVENT.register(((commandDispatcher, commandRegistryAccess) -> {
+			commandDispatcher.register(ClientCommandManager.literal("webcam-stats").executes(context -> {
+				for (String line : DebugOverlay.statsLines()) {
+					context.getSource().sendFeedback(Text.literal(line));
+				}
+				return 1;
+			}).then(ClientCommandManager.literal("hud").executes(context -> {
+				DebugOverlay.showStats = !DebugOverlay.showStats;
+				return 1;
+			})));
+		}));
+	}
 }
@@ -0,0 +1,63 @@
+package com.lichcode.webcam.render;
+
+import com.lichcode.webcam.PlayerFeeds;
+import com.lichcode.webcam.metrics.StageTimer;
+import com.lichcode.webcam.render.buffer.DirectBufferPool;
+import com.lichcode.webcam.render.texture.FaceTextureArray;
+import com.lichcode.webcam.video.FrameDecoder;
+import com.lichcode.webcam.video.VideoManager;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.font.TextRenderer;
+import net.minecraft.client.gui.DrawContext;
+import net.minecraft.client.render.RenderTickCounter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shows how much memory the webcam feeds use at the bottom of the screen while the F3 screen is open,
+ * and how every stage of the video path is doing when turned on with /webcam-stats hud.
+ */
+public class DebugOverlay {
+    private static final int LINE_HEIGHT = 10;
+    private static final int COLOR = 0xE0E0E0;
+
+    public static boolean showStats = false;
+
+    /**
+     * One line per stage, from our camera to other players' faces on screen.
+     */
+    public static List<String> statsLines() {
+        List<String> lines = new ArrayList<>();
+        for (StageTimer timer : List.of(VideoManager.captureTimer, VideoManager.scaleTimer, VideoManager.encodeTimer,
+                VideoManager.sendTimer, FrameDecoder.decodeTimer, FaceTextureArray.uploadTimer)) {
+            lines.add(timer.toString());
+        }
+        return lines;
+    }
+
+    public static void render(DrawContext context, RenderTickCounter tickCounter) {
+        MinecraftClient client = MinecraftClient.getInstance();
+        boolean debugHud = client.getDebugHud().shouldShowDebugHud();
+        if (!debugHud && !showStats) {
+            return;
+        }
+
+        List<String> lines = new ArrayList<>();
+        if (showStats) {
+            lines.addAll(statsLines());
+        }
+        if (debugHud) {
+            lines.add(String.format("Webcam feeds: %d, layers %d/%d, %d evicted", PlayerFeeds.size(), FaceTextureArray.usedLayers(), FaceTextureArray.CAPACITY, FaceTextureArray.evictions));
+            lines.add(String.format("Webcam VRAM: %d KiB (%dx%d %s layers)", FaceTextureArray.videoMemoryBytes() / 1024, FaceTextureArray.layerWidth, FaceTextureArray.layerHeight, FaceTextureArray.format));
+            lines.add(String.format("Webcam direct memory: %d KiB, %d KiB pooled", DirectBufferPool.allocatedBytes.get() / 1024, DirectBufferPool.pooledBytes.get() / 1024));
+        }
+
+        TextRenderer textRenderer = client.textRenderer;
+        int y = context.getScaledWindowHeight() - LINE_HEIGHT * lines.size() - 2;
+        for (String line : lines) {
+            context.drawTextWithShadow(textRenderer, line, 2, y, COLOR);
+            y += LINE_HEIGHT;
+        }
+    }
+}
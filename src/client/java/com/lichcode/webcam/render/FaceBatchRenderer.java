@@ -0,0 +1,209 @@
+package com.lichcode.webcam.render;
+
+import com.lichcode.webcam.WebcamMod;
+import com.lichcode.webcam.render.image.RenderableImage;
+import com.lichcode.webcam.render.texture.FaceTextureArray;
+import com.lichcode.webcam.video.PixelFormat;
+import com.mojang.blaze3d.systems.RenderSystem;
+import net.minecraft.client.render.BufferRenderer;
+import org.joml.Matrix4f;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Collects the faces drawn during entity rendering and draws all of them with a single instanced call.
+ * Everything in here must be called on the render thread.
+ */
+public class FaceBatchRenderer {
+    // mat4 transform + vec4 slot (u scale, v scale, layer, unused)
+    private static final int FLOATS_PER_FACE = 20;
+    private static final int POSITION = 0;
+    private static final int UV = 1;
+    private static final int TRANSFORM = 2;
+    private static final int SLOT = 6;
+
+    private static FloatBuffer instances = MemoryUtil.memAllocFloat(FLOATS_PER_FACE * 16);
+    private static int count = 0;
+    private static final Matrix4f transform = new Matrix4f();
+
+    private static boolean initialized = false;
+    private static int program;
+    private static int yuvUniform;
+    private static int vao;
+    private static int quadBuffer;
+    private static int instanceBuffer;
+
+    /**
+     * Queues a face for the next flush. The transform is resolved now, so faces recorded for the world and for
+     * a screen can't mix up their projections.
+     */
+    public static void add(Matrix4f position, RenderableImage image) {
+        if (count * FLOATS_PER_FACE + FLOATS_PER_FACE > instances.capacity()) {
+            instances = MemoryUtil.memRealloc(instances, instances.capacity() * 2);
+        }
+
+        transform.set(RenderSystem.getProjectionMatrix()).mul(RenderSystem.getModelViewMatrix()).mul(position);
+        int offset = count * FLOATS_PER_FACE;
+        transform.get(offset, instances);
+        instances.put(offset + 16, image.uScale());
+        instances.put(offset + 17, image.vScale());
+        instances.put(offset + 18, image.layer);
+        instances.put(offset + 19, 0);
+        count++;
+    }
+
+    public static void clear() {
+        count = 0;
+    }
+
+    public static void flush() {
+        if (count == 0 || FaceTextureArray.id == 0) {
+            count = 0;
+            return;
+        }
+        if (!initialized) {
+            init();
+        }
+
+        glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer);
+        // Orphan last frame's instances
+        glBufferData(GL_ARRAY_BUFFER, (long) instances.capacity() * Float.BYTES, GL_STREAM_DRAW);
+        instances.limit(count * FLOATS_PER_FACE);
+        glBufferSubData(GL_ARRAY_BUFFER, 0, instances);
+        instances.clear();
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+        // Put back whatever the caller had when done, the world and screens leave these in different states
+        boolean depthTest = glIsEnabled(GL_DEPTH_TEST);
+        boolean blend = glIsEnabled(GL_BLEND);
+        boolean cull = glIsEnabled(GL_CULL_FACE);
+        RenderSystem.disableCull();
+        RenderSystem.enableDepthTest();
+        RenderSystem.disableBlend();
+        glUseProgram(program);
+        boolean yuv = FaceTextureArray.format == PixelFormat.YUV420;
+        glUniform1i(yuvUniform, yuv ? 1 : 0);
+        if (yuv) {
+            RenderSystem.activeTexture(GL_TEXTURE1);
+            glBindTexture(GL_TEXTURE_2D_ARRAY, FaceTextureArray.chromaU);
+            RenderSystem.activeTexture(GL_TEXTURE2);
+            glBindTexture(GL_TEXTURE_2D_ARRAY, FaceTextureArray.chromaV);
+        }
+        RenderSystem.activeTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D_ARRAY, FaceTextureArray.id);
+        glBindVertexArray(vao);
+
+        glDrawArraysInstanced(GL_TRIANGLES, 0, 6, count);
+
+        glBindVertexArray(0);
+        // Minecraft keeps track of its own vertex arrays, make sure it binds its own again
+        BufferRenderer.reset();
+        if (yuv) {
+            RenderSystem.activeTexture(GL_TEXTURE1);
+            glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+            RenderSystem.activeTexture(GL_TEXTURE2);
+            glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+            RenderSystem.activeTexture(GL_TEXTURE0);
+        }
+        glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+        glUseProgram(0);
+        if (!depthTest) {
+            RenderSystem.disableDepthTest();
+        }
+        if (blend) {
+            RenderSystem.enableBlend();
+        }
+        if (cull) {
+            RenderSystem.enableCull();
+        }
+
+        count = 0;
+    }
+
+    private static void init() {
+        initialized = true;
+        program = glCreateProgram();
+        int vertexShader = compile(GL_VERTEX_SHADER, "face.vsh");
+        int fragmentShader = compile(GL_FRAGMENT_SHADER, "face.fsh");
+        glAttachShader(program, vertexShader);
+        glAttachShader(program, fragmentShader);
+        glBindAttribLocation(program, POSITION, "Position");
+        glBindAttribLocation(program, UV, "UV");
+        glBindAttribLocation(program, TRANSFORM, "Transform");
+        glBindAttribLocation(program, SLOT, "Slot");
+        glLinkProgram(program);
+        if (glGetProgrami(program, GL_LINK_STATUS) == GL_FALSE) {
+            WebcamMod.LOGGER.error("Could not link face shader: {}", glGetProgramInfoLog(program));
+        }
+        glDeleteShader(vertexShader);
+        glDeleteShader(fragmentShader);
+        glUseProgram(program);
+        glUniform1i(glGetUniformLocation(program, "Faces"), 0);
+        glUniform1i(glGetUniformLocation(program, "FacesU"), 1);
+        glUniform1i(glGetUniformLocation(program, "FacesV"), 2);
+        yuvUniform = glGetUniformLocation(program, "Yuv");
+        glUseProgram(0);
+
+        vao = glGenVertexArrays();
+        glBindVertexArray(vao);
+
+        // Same quad the face was always drawn with, the texture is flipped to match the head
+        quadBuffer = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, quadBuffer);
+        glBufferData(GL_ARRAY_BUFFER, new float[] {
+                1, -1, 0, 0, 0,
+                1, 0, 0, 0, 1,
+                -1, 0, 0, 1, 1,
+
+                -1, 0, 0, 1, 1,
+                1, -1, 0, 0, 0,
+                -1, -1, 0, 1, 0,
+        }, GL_STATIC_DRAW);
+        glEnableVertexAttribArray(POSITION);
+        glVertexAttribPointer(POSITION, 3, GL_FLOAT, false, 5 * Float.BYTES, 0);
+        glEnableVertexAttribArray(UV);
+        glVertexAttribPointer(UV, 2, GL_FLOAT, false, 5 * Float.BYTES, 3 * Float.BYTES);
+
+        instanceBuffer = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer);
+        int stride = FLOATS_PER_FACE * Float.BYTES;
+        for (int column = 0; column < 4; column++) {
+            glEnableVertexAttribArray(TRANSFORM + column);
+            glVertexAttribPointer(TRANSFORM + column, 4, GL_FLOAT, false, stride, (long) column * 4 * Float.BYTES);
+            glVertexAttribDivisor(TRANSFORM + column, 1);
+        }
+        glEnableVertexAttribArray(SLOT);
+        glVertexAttribPointer(SLOT, 4, GL_FLOAT, false, stride, 16 * Float.BYTES);
+        glVertexAttribDivisor(SLOT, 1);
+
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
+        BufferRenderer.reset();
+    }
+
+    private static int compile(int type, String name) {
+        String source;
+        try (InputStream stream = FaceBatchRenderer.class.getResourceAsStream("/assets/" + WebcamMod.MOD_ID + "/shaders/" + name)) {
+            if (stream == null) {
+                throw new IllegalStateException("Missing shader " + name);
+            }
+            source = new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        int shader = glCreateShader(type);
+        glShaderSource(shader, source);
+        glCompileShader(shader);
+        if (glGetShaderi(shader, GL_COMPILE_STATUS) == GL_FALSE) {
+            WebcamMod.LOGGER.error("Could not compile {}: {}", name, glGetShaderInfoLog(shader));
+        }
+        return shader;
+    }
+}
@@ -0,0 +1,53 @@
+package com.lichcode.webcam.render;
+
+import com.lichcode.webcam.PlayerFeed;
+import com.lichcode.webcam.PlayerFeeds;
+import com.lichcode.webcam.video.FrameDecoder;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.network.ClientPlayNetworkHandler;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frees the textures of players that left, or that haven't sent a frame or been looked at for a while.
+ * Everything in here runs on the render thread.
+ */
+public class FaceTextureManager {
+    public static int idleTimeoutSeconds = 30;
+    private static final int CHECK_INTERVAL_TICKS = 20;
+    private static int ticks = 0;
+
+    public static void tick(MinecraftClient client) {
+        if (++ticks % CHECK_INTERVAL_TICKS != 0) {
+            return;
+        }
+
+        ClientPlayNetworkHandler networkHandler = client.getNetworkHandler();
+        if (networkHandler == null) {
+            return;
+        }
+
+        long idleSince = System.nanoTime() - TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+        for (PlayerFeed feed : PlayerFeeds.all()) {
+            boolean idle = feed.lastFrameTime < idleSince && feed.image.lastRenderTime < idleSince;
+            if (idle || networkHandler.getPlayerListEntry(feed.playerUUID) == null) {
+                release(feed.playerUUID);
+            }
+        }
+    }
+
+    public static void release(UUID playerUUID) {
+        FrameDecoder.forget(playerUUID);
+        PlayerFeed feed = PlayerFeeds.remove(playerUUID);
+        if (feed != null) {
+            feed.close();
+        }
+    }
+
+    public static void releaseAll() {
+        for (PlayerFeed feed : PlayerFeeds.all()) {
+            release(feed.playerUUID);
+        }
+    }
+}
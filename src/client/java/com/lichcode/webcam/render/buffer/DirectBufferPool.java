@@ -0,0 +1,49 @@
+package com.lichcode.webcam.render.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reuses direct buffers of the same size. Video frames of a stream are always the same size, so
+ * after the first few frames decoding stops allocating direct memory.
+ */
+public class DirectBufferPool {
+    private static final int BUFFERS_PER_SIZE = 16;
+    private static final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>> pools = new ConcurrentHashMap<>();
+    // Direct memory held by buffers handed out or sitting in a pool
+    public static final AtomicLong allocatedBytes = new AtomicLong();
+    public static final AtomicLong pooledBytes = new AtomicLong();
+
+    public static ByteBuffer acquire(int size) {
+        ByteBuffer buffer = pool(size).poll();
+        if (buffer == null) {
+            allocatedBytes.addAndGet(size);
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        pooledBytes.addAndGet(-size);
+        buffer.clear();
+        return buffer;
+    }
+
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        ConcurrentLinkedQueue<ByteBuffer> pool = pool(buffer.capacity());
+        if (pool.size() < BUFFERS_PER_SIZE) {
+            pooledBytes.addAndGet(buffer.capacity());
+            pool.offer(buffer);
+        } else {
+            // Left for the garbage collector
+            allocatedBytes.addAndGet(-buffer.capacity());
+        }
+    }
+
+    private static ConcurrentLinkedQueue<ByteBuffer> pool(int size) {
+        return pools.computeIfAbsent(size, (key) -> new ConcurrentLinkedQueue<>());
+    }
+}
@@ -0,0 +1,64 @@
+package com.lichcode.webcam.render.buffer;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * A ring of pixel unpack buffers used to stream frames into textures. Each write moves to the next buffer and
+ * orphans its storage first, so the driver never has to wait for an upload that is still reading the old data.
+ */
+public class PixelBufferRing {
+    public static int depth = 3;
+
+    private final int[] buffers;
+    private final int size;
+    private int index = 0;
+
+    public PixelBufferRing(int size) {
+        this.size = size;
+        this.buffers = new int[Math.max(1, depth)];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = glGenBuffers();
+            glBindBuffer(GL_PIXEL_UNPACK_BUFFER, buffers[i]);
+            glBufferData(GL_PIXEL_UNPACK_BUFFER, size, GL_STREAM_DRAW);
+        }
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+    }
+
+    /**
+     * Copies the data into the next buffer of the ring and leaves it bound, ready for a glTexSubImage call
+     * with offset 0. Returns false and leaves nothing bound if the buffer could not be mapped.
+     */
+    public boolean write(ByteBuffer data) {
+        index = (index + 1) % buffers.length;
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, buffers[index]);
+        // Orphan the old storage
+        glBufferData(GL_PIXEL_UNPACK_BUFFER, size, GL_STREAM_DRAW);
+        ByteBuffer mapped = glMapBufferRange(GL_PIXEL_UNPACK_BUFFER, 0, size, GL_MAP_WRITE_BIT | GL_MAP_INVALIDATE_BUFFER_BIT);
+        if (mapped == null) {
+            unbind();
+            return false;
+        }
+
+        MemoryUtil.memCopy(MemoryUtil.memAddress(data), MemoryUtil.memAddress(mapped), Math.min(data.remaining(), size));
+        glUnmapBuffer(GL_PIXEL_UNPACK_BUFFER);
+        return true;
+    }
+
+    public void unbind() {
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void close() {
+        for (int buffer : buffers) {
+            glDeleteBuffers(buffer);
+        }
+    }
+}
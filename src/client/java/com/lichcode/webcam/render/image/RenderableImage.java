@@ -1,42 +1,102 @@
 package com.lichcode.webcam.render.image;
 
-import com.lichcode.webcam.Video.PlayerVideo;
-import com.lichcode.webcam.render.buffer.DoublePBO;
-
-import java.nio.ByteBuffer;
-
-import static org.lwjgl.opengl.GL33.*;
+import com.lichcode.webcam.render.texture.FaceTextureArray;
+import com.lichcode.webcam.video.DecodedFrame;
 
+/**
+ * A player's video as a layer of the {@link FaceTextureArray}. A frame is only uploaded when the decoder has
+ * published a new one to the player's feed.
+ */
 public class RenderableImage {
-    public ByteBuffer data;
     public int width;
     public int height;
-    public int id;
-    public DoublePBO buffer;
+    public int layer = -1;
+    private int uploadedGeneration = -1;
+    // A frame that arrived while every layer was taken, uploaded once a layer frees up
+    private DecodedFrame waiting;
+    // Used to drop feeds nobody looked at for a while
+    public long lastRenderTime = System.nanoTime();
+
+    /**
+     * Called on the render thread with the newest decoded frame, or null if none arrived since the last call.
+     */
+    public void upload(DecodedFrame frame) {
+        if (frame == null) {
+            frame = waiting;
+        } else if (waiting != null) {
+            frame.include(waiting);
+            waiting.release();
+        }
+        waiting = null;
+        if (frame == null) {
+            return;
+        }
+
+        if (layer < 0) {
+            layer = FaceTextureArray.allocate(this);
+            if (layer < 0) {
+                // Too many faces on screen, this one isn't drawn until a layer frees up
+                waiting = frame;
+                return;
+            }
+        }
 
-    public void init() {
-        if (id == 0) {
-            id = glGenTextures();
-            buffer = new DoublePBO(this.width * this.height * 3);
+        try {
+            // Only the changed tiles are uploaded, unless the layer doesn't hold the previous frame
+            boolean full = frame.isFull() || !isReady() || width != frame.width || height != frame.height;
+            FaceTextureArray.upload(layer, frame, full);
+            this.width = frame.width;
+            this.height = frame.height;
+            this.uploadedGeneration = FaceTextureArray.generation;
+        } finally {
+            // The pixels are in the pixel buffer or the texture now
+            frame.release();
         }
+    }
+
+    /**
+     * Called on the render thread when the face is drawn.
+     */
+    public void markRendered() {
+        lastRenderTime = System.nanoTime();
+        FaceTextureArray.touch(layer);
+    }
 
-        glBindTexture(GL_TEXTURE_2D, this.id);
-        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB, this.width, this.height, 0, GL_RGB, GL_UNSIGNED_BYTE, 0);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+    /**
+     * Called by the texture array when it gives this image's layer to someone else.
+     * The next frame that arrives gets a new layer.
+     */
+    public void evict() {
+        layer = -1;
+        // The new layer still holds someone else's face
+        uploadedGeneration = -1;
+    }
 
-        glBindTexture(GL_TEXTURE_2D, 0);
+    /**
+     * True when the layer holds a frame that can be drawn.
+     */
+    public boolean isReady() {
+        return layer >= 0 && uploadedGeneration == FaceTextureArray.generation;
     }
 
-    public void fill(PlayerVideo video) {
-        this.width = video.width;
-        this.height = video.height;
-        this.data = video.asByteBuffer();
+    public float uScale() {
+        // Frames bigger than the layers are cut off
+        return Math.min(1f, (float) width / FaceTextureArray.layerWidth);
     }
 
-    public ByteBuffer data() {
-        return this.data;
+    public float vScale() {
+        return Math.min(1f, (float) height / FaceTextureArray.layerHeight);
+    }
+
+    /**
+     * Gives the layer back, must be called on the render thread.
+     */
+    public void close() {
+        FaceTextureArray.free(layer);
+        layer = -1;
+        if (waiting != null) {
+            waiting.release();
+            waiting = null;
+        }
     }
-}
\ No newline at end of file
+}
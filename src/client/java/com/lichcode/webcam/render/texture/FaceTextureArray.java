@@ -0,0 +1,346 @@
+package com.lichcode.webcam.render.texture;
+
+import com.lichcode.webcam.Video.PlayerVideo;
+import com.lichcode.webcam.metrics.StageTimer;
+import com.lichcode.webcam.render.buffer.PixelBufferRing;
+import com.lichcode.webcam.render.image.RenderableImage;
+import com.lichcode.webcam.video.DecodedFrame;
+import com.lichcode.webcam.video.FrameDecoder;
+import com.lichcode.webcam.video.PixelFormat;
+import org.lwjgl.opengl.ARBTextureStorage;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL42C;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * One GL_TEXTURE_2D_ARRAY shared by every player's video, each player gets a layer. YUV frames use three arrays,
+ * one per plane, with the same layers.
+ * Having all faces in a single texture is what lets them be drawn in one instanced call.
+ * The number of layers is fixed, when they are all taken the least recently used one is given to the new player.
+ * Layers drawn in this frame or the last one are never taken, so with more faces than layers the extra faces
+ * are skipped instead of overwriting a face that is already queued, or taking turns with it every frame.
+ * Everything in here must be called on the render thread.
+ */
+public class FaceTextureArray {
+    public static final int CAPACITY = 32;
+
+    // BGR, or the Y plane for YUV frames
+    public static int id = 0;
+    // The quarter size U and V planes, only for YUV frames
+    public static int chromaU = 0;
+    public static int chromaV = 0;
+    public static PixelFormat format = PixelFormat.BGR;
+    public static int layerWidth = 0;
+    public static int layerHeight = 0;
+    // Bumped whenever the storage is reallocated, layers uploaded before that are empty again
+    public static int generation = 0;
+
+    public static long evictions = 0;
+    // Time spent handing frames to the driver, bytes are what was uploaded
+    public static final StageTimer uploadTimer = new StageTimer("upload");
+
+    private static final RenderableImage[] owners = new RenderableImage[CAPACITY];
+    // The render frame each layer was last drawn in
+    private static final long[] lastUsed = new long[CAPACITY];
+    private static long frame = 0;
+    private static PixelBufferRing buffer;
+
+    /**
+     * Called when a new frame starts rendering.
+     */
+    public static void nextFrame() {
+        frame++;
+    }
+
+    /**
+     * Gives the image a layer, taking it away from the least recently used image if none is free.
+     * Returns -1 if every layer was drawn in this frame or the last one.
+     */
+    public static int allocate(RenderableImage image) {
+        int layer = -1;
+        long oldest = frame - 1;
+        for (int i = 0; i < owners.length; i++) {
+            if (owners[i] == null) {
+                layer = i;
+                break;
+            }
+            if (lastUsed[i] < oldest) {
+                oldest = lastUsed[i];
+                layer = i;
+            }
+        }
+        if (layer < 0) {
+            return -1;
+        }
+
+        if (owners[layer] != null) {
+            owners[layer].evict();
+            evictions++;
+        }
+        owners[layer] = image;
+        lastUsed[layer] = frame;
+        return layer;
+    }
+
+    /**
+     * Marks the layer as drawn in this frame, so it is kept until the face stops being drawn.
+     */
+    public static void touch(int layer) {
+        if (layer >= 0) {
+            lastUsed[layer] = frame;
+        }
+    }
+
+    public static void free(int layer) {
+        if (layer >= 0) {
+            owners[layer] = null;
+        }
+    }
+
+    public static int usedLayers() {
+        int used = 0;
+        for (RenderableImage owner : owners) {
+            if (owner != null) {
+                used++;
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Bytes of video memory taken by the textures and their pixel buffers.
+     */
+    public static long videoMemoryBytes() {
+        if (id == 0) {
+            return 0;
+        }
+
+        long layerBytes = format.frameBytes(layerWidth, layerHeight);
+        return layerBytes * owners.length + (long) layerWidth * layerHeight * 3 * PixelBufferRing.depth;
+    }
+
+    /**
+     * Uploads the frame into the layer, either whole or only its dirty tiles. The array is sized from the
+     * server's limits before anything streams, it isn't grown here since that would happen halfway through
+     * drawing the faces. A frame bigger than the layers is cut off instead.
+     */
+    public static void upload(int layer, DecodedFrame frame, boolean full) {
+        if (id == 0) {
+            ensureSize(frame.width, frame.height, frame.format);
+        }
+        if (frame.format != format) {
+            // Decoded before the format changed, the next one will match
+            return;
+        }
+        full |= frame.dirtyTiles == null;
+
+        // Set defaults because minecraft might change this during rendering
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1); // Rows are tightly packed
+        glPixelStorei(GL_UNPACK_IMAGE_HEIGHT, 0);
+        glPixelStorei(GL_UNPACK_SKIP_IMAGES, 0);
+
+        long start = uploadTimer.start();
+        boolean buffered = buffer.write(frame.pixels);
+        if (full) {
+            uploadRect(layer, frame, buffered, 0, 0, Math.min(frame.width, layerWidth), Math.min(frame.height, layerHeight));
+            uploadTimer.stop(start, frame.format.frameBytes(frame.width, frame.height));
+        } else {
+            uploadTiles(layer, frame, buffered);
+            uploadTimer.stop(start, (long) frame.format.frameBytes(PlayerVideo.TILE_SIZE, PlayerVideo.TILE_SIZE) * frame.dirtyTiles.cardinality());
+        }
+        if (buffered) {
+            buffer.unbind();
+        }
+        glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+        glPixelStorei(GL_UNPACK_ROW_LENGTH, 0);
+        glPixelStorei(GL_UNPACK_SKIP_PIXELS, 0);
+        glPixelStorei(GL_UNPACK_SKIP_ROWS, 0);
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 4); // Default is 4
+    }
+
+    private static void uploadTiles(int layer, DecodedFrame frame, boolean buffered) {
+        int tilesX = PlayerVideo.tilesX(frame.width);
+        int tilesY = PlayerVideo.tilesY(frame.height);
+        for (int tileY = 0; tileY < tilesY; tileY++) {
+            int rowStart = tileY * tilesX;
+            int start = frame.dirtyTiles.nextSetBit(rowStart);
+            // One upload per run of changed tiles in a row
+            while (start >= 0 && start < rowStart + tilesX) {
+                int end = Math.min(frame.dirtyTiles.nextClearBit(start), rowStart + tilesX);
+                int x = (start - rowStart) * PlayerVideo.TILE_SIZE;
+                int y = tileY * PlayerVideo.TILE_SIZE;
+                int width = Math.min(Math.min(frame.width, layerWidth), (end - rowStart) * PlayerVideo.TILE_SIZE) - x;
+                int height = Math.min(PlayerVideo.TILE_SIZE, Math.min(frame.height, layerHeight) - y);
+                if (width > 0 && height > 0) {
+                    uploadRect(layer, frame, buffered, x, y, width, height);
+                }
+                start = frame.dirtyTiles.nextSetBit(end);
+            }
+        }
+    }
+
+    // Uploads a rectangle of the frame, for YUV frames the matching rectangle of every plane
+    private static void uploadRect(int layer, DecodedFrame frame, boolean buffered, int x, int y, int width, int height) {
+        if (frame.format == PixelFormat.BGR) {
+            uploadPlane(id, layer, frame, buffered, GL_BGR, frame.width, 0, x, y, width, height);
+            return;
+        }
+
+        int chromaWidth = PixelFormat.chromaWidth(frame.width);
+        int chromaHeight = PixelFormat.chromaHeight(frame.height);
+        int uOffset = frame.width * frame.height;
+        int vOffset = uOffset + chromaWidth * chromaHeight;
+        // Rectangles start on even coordinates, so the chroma rectangle covers exactly the same pixels
+        int chromaX = x / 2;
+        int chromaY = y / 2;
+        int chromaRectWidth = Math.min(chromaWidth, (x + width + 1) / 2) - chromaX;
+        int chromaRectHeight = Math.min(chromaHeight, (y + height + 1) / 2) - chromaY;
+        uploadPlane(id, layer, frame, buffered, GL_RED, frame.width, 0, x, y, width, height);
+        uploadPlane(chromaU, layer, frame, buffered, GL_RED, chromaWidth, uOffset, chromaX, chromaY, chromaRectWidth, chromaRectHeight);
+        uploadPlane(chromaV, layer, frame, buffered, GL_RED, chromaWidth, vOffset, chromaX, chromaY, chromaRectWidth, chromaRectHeight);
+    }
+
+    private static void uploadPlane(int texture, int layer, DecodedFrame frame, boolean buffered, int pixelFormat,
+                                    int rowLength, int offset, int x, int y, int width, int height) {
+        glBindTexture(GL_TEXTURE_2D_ARRAY, texture);
+        // The source rectangle is cut out of the whole plane
+        glPixelStorei(GL_UNPACK_ROW_LENGTH, rowLength);
+        glPixelStorei(GL_UNPACK_SKIP_PIXELS, x);
+        glPixelStorei(GL_UNPACK_SKIP_ROWS, y);
+        if (buffered) {
+            glTexSubImage3D(GL_TEXTURE_2D_ARRAY, 0, x, y, layer, width, height, 1, pixelFormat, GL_UNSIGNED_BYTE, offset);
+        } else {
+            frame.pixels.position(offset);
+            glTexSubImage3D(GL_TEXTURE_2D_ARRAY, 0, x, y, layer, width, height, 1, pixelFormat, GL_UNSIGNED_BYTE, frame.pixels);
+            frame.pixels.position(0);
+        }
+    }
+
+    /**
+     * Makes sure every layer can hold a frame of the given size in the current decoder format.
+     */
+    public static void ensureSize(int width, int height) {
+        ensureSize(width, height, FrameDecoder.pixelFormat);
+    }
+
+    /**
+     * Makes sure every layer can hold a frame of the given size and format. Frames smaller than a layer only use
+     * its top left corner, growing the layers or changing the format reallocates the whole array.
+     * Growing copies the faces over, streams that don't change would stay blank until their next keyframe otherwise.
+     */
+    public static void ensureSize(int width, int height, PixelFormat pixelFormat) {
+        if (id != 0 && width <= layerWidth && height <= layerHeight && pixelFormat == format) {
+            return;
+        }
+
+        int newWidth = Math.max(width, layerWidth);
+        int newHeight = Math.max(height, layerHeight);
+        boolean keepFaces = id != 0 && pixelFormat == format;
+        int oldWidth = layerWidth;
+        int oldHeight = layerHeight;
+        ByteBuffer[] faces = keepFaces ? readFaces() : null;
+        close();
+        layerWidth = newWidth;
+        layerHeight = newHeight;
+        format = pixelFormat;
+        if (!keepFaces) {
+            generation++;
+        }
+
+        // Big enough for a BGR frame, which is also big enough for a YUV one
+        buffer = new PixelBufferRing(layerWidth * layerHeight * 3);
+        if (format == PixelFormat.BGR) {
+            id = createArray(GL_RGB8, layerWidth, layerHeight, GL_BGR);
+        } else {
+            id = createArray(GL_R8, layerWidth, layerHeight, GL_RED);
+            chromaU = createArray(GL_R8, PixelFormat.chromaWidth(layerWidth), PixelFormat.chromaHeight(layerHeight), GL_RED);
+            chromaV = createArray(GL_R8, PixelFormat.chromaWidth(layerWidth), PixelFormat.chromaHeight(layerHeight), GL_RED);
+        }
+        if (faces != null) {
+            writeFaces(faces, oldWidth, oldHeight);
+        }
+    }
+
+    // Every layer of every plane, read back so they survive reallocating the array
+    private static ByteBuffer[] readFaces() {
+        int[] textures = format == PixelFormat.BGR ? new int[] {id} : new int[] {id, chromaU, chromaV};
+        ByteBuffer[] faces = new ByteBuffer[textures.length];
+        glPixelStorei(GL_PACK_ALIGNMENT, 1);
+        for (int i = 0; i < textures.length; i++) {
+            boolean chroma = i > 0;
+            int width = chroma ? PixelFormat.chromaWidth(layerWidth) : layerWidth;
+            int height = chroma ? PixelFormat.chromaHeight(layerHeight) : layerHeight;
+            int channels = format == PixelFormat.BGR ? 3 : 1;
+            faces[i] = MemoryUtil.memAlloc(width * height * channels * CAPACITY);
+            glBindTexture(GL_TEXTURE_2D_ARRAY, textures[i]);
+            glGetTexImage(GL_TEXTURE_2D_ARRAY, 0, format == PixelFormat.BGR ? GL_BGR : GL_RED, GL_UNSIGNED_BYTE, faces[i]);
+        }
+        glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+        glPixelStorei(GL_PACK_ALIGNMENT, 4);
+        return faces;
+    }
+
+    // Puts the faces read by readFaces into the top left corner of the new layers
+    private static void writeFaces(ByteBuffer[] faces, int oldWidth, int oldHeight) {
+        int[] textures = format == PixelFormat.BGR ? new int[] {id} : new int[] {id, chromaU, chromaV};
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        glPixelStorei(GL_UNPACK_ROW_LENGTH, 0);
+        glPixelStorei(GL_UNPACK_IMAGE_HEIGHT, 0);
+        glPixelStorei(GL_UNPACK_SKIP_PIXELS, 0);
+        glPixelStorei(GL_UNPACK_SKIP_ROWS, 0);
+        glPixelStorei(GL_UNPACK_SKIP_IMAGES, 0);
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+        for (int i = 0; i < textures.length; i++) {
+            boolean chroma = i > 0;
+            int width = chroma ? PixelFormat.chromaWidth(oldWidth) : oldWidth;
+            int height = chroma ? PixelFormat.chromaHeight(oldHeight) : oldHeight;
+            glBindTexture(GL_TEXTURE_2D_ARRAY, textures[i]);
+            glTexSubImage3D(GL_TEXTURE_2D_ARRAY, 0, 0, 0, 0, width, height, CAPACITY, format == PixelFormat.BGR ? GL_BGR : GL_RED, GL_UNSIGNED_BYTE, faces[i]);
+            MemoryUtil.memFree(faces[i]);
+        }
+        glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+    }
+
+    private static int createArray(int internalFormat, int width, int height, int pixelFormat) {
+        int texture = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D_ARRAY, texture);
+        GLCapabilities capabilities = GL.getCapabilities();
+        if (capabilities.OpenGL42) {
+            GL42C.glTexStorage3D(GL_TEXTURE_2D_ARRAY, 1, internalFormat, width, height, CAPACITY);
+        } else if (capabilities.GL_ARB_texture_storage) {
+            ARBTextureStorage.glTexStorage3D(GL_TEXTURE_2D_ARRAY, 1, internalFormat, width, height, CAPACITY);
+        } else {
+            glTexImage3D(GL_TEXTURE_2D_ARRAY, 0, internalFormat, width, height, CAPACITY, 0, pixelFormat, GL_UNSIGNED_BYTE, 0);
+        }
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAX_LEVEL, 0);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+        return texture;
+    }
+
+    public static void close() {
+        if (id != 0) {
+            glDeleteTextures(id);
+            id = 0;
+        }
+        if (chromaU != 0) {
+            glDeleteTextures(chromaU);
+            glDeleteTextures(chromaV);
+            chromaU = 0;
+            chromaV = 0;
+        }
+        if (buffer != null) {
+            buffer.close();
+            buffer = null;
+        }
+    }
+}
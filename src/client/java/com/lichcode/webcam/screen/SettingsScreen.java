@@ -3,6 +3,7 @@ package com.lichcode.webcam.screen;
 import com.github.sarxos.webcam.Webcam;
 import com.github.sarxos.webcam.WebcamException;
 import com.lichcode.webcam.WebcamMod;
+import com.lichcode.webcam.render.FaceBatchRenderer;
 import com.lichcode.webcam.video.VideoCamara;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
@@ -135,6 +136,8 @@ public class SettingsScreen extends Screen {
         entityRenderDispatcher.setRenderShadows(false);
         context.draw((vertexConsumers) -> entityRenderDispatcher.render(entity, (double)0.0F, (double)0.0F, (double)0.0F, 1.0F, context.getMatrices(), vertexConsumers, 15728880));
         context.draw();
+        // Draw the face now so it is under the rest of the screen
+        FaceBatchRenderer.flush();
         entityRenderDispatcher.setRenderShadows(true);
         context.getMatrices().pop();
         DiffuseLighting.enableGuiDepthLighting();
@@ -0,0 +1,18 @@
+package com.lichcode.webcam.video;
+
+/**
+ * Something the capture stage can take frames from, a real camera or a synthetic one.
+ * Only used from the capture thread, apart from name.
+ */
+public interface CaptureSource {
+    String name();
+
+    void open();
+
+    void close();
+
+    /**
+     * Copies the current frame into the raw frame. Returns false when there is nothing to give.
+     */
+    boolean grab(RawFrame frame);
+}
@@ -0,0 +1,60 @@
+package com.lichcode.webcam.video;
+
+import com.lichcode.webcam.render.buffer.DirectBufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.UUID;
+
+/**
+ * A video frame that is ready to be uploaded, laid out as its {@link PixelFormat} says.
+ * The pixels always hold the whole picture, dirtyTiles says which tiles changed since the previous frame.
+ */
+public class DecodedFrame {
+    public final UUID playerUUID;
+    public final int width;
+    public final int height;
+    public final PixelFormat format;
+    public final ByteBuffer pixels;
+    // Null when the whole frame changed
+    public BitSet dirtyTiles;
+
+    public DecodedFrame(UUID playerUUID, int width, int height, ByteBuffer pixels) {
+        this(playerUUID, width, height, pixels, null);
+    }
+
+    public DecodedFrame(UUID playerUUID, int width, int height, ByteBuffer pixels, BitSet dirtyTiles) {
+        this(playerUUID, width, height, PixelFormat.BGR, pixels, dirtyTiles);
+    }
+
+    public DecodedFrame(UUID playerUUID, int width, int height, PixelFormat format, ByteBuffer pixels, BitSet dirtyTiles) {
+        this.playerUUID = playerUUID;
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.pixels = pixels;
+        this.dirtyTiles = dirtyTiles;
+    }
+
+    public boolean isFull() {
+        return dirtyTiles == null;
+    }
+
+    /**
+     * Adds the changes of a frame that was replaced before it was uploaded.
+     */
+    public void include(DecodedFrame skipped) {
+        if (skipped == null || dirtyTiles == null) {
+            return;
+        }
+        if (skipped.dirtyTiles == null || skipped.width != width || skipped.height != height || skipped.format != format) {
+            dirtyTiles = null;
+        } else {
+            dirtyTiles.or(skipped.dirtyTiles);
+        }
+    }
+
+    public void release() {
+        DirectBufferPool.release(pixels);
+    }
+}
@@ -0,0 +1,249 @@
+package com.lichcode.webcam.video;
+
+import com.lichcode.webcam.Video.PlayerVideo;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.util.UUID;
+
+import static com.lichcode.webcam.Video.PlayerVideo.TILE_SIZE;
+
+/**
+ * Turns scaled frames into keyframes and delta frames. A delta frame only carries the tiles that changed since
+ * the previous frame, packed next to each other into one small JPEG. Keyframes are sent every
+ * keyframeInterval frames, when the server asks for one and when too much of the frame changed.
+ * Before any of that a cheap luma fingerprint of the frame is compared with the one of what viewers have.
+ * Tile averages can stay the same while something moves inside the tile, so a frame that passes is checked
+ * again sample by sample. If the picture is the same (nobody at the desk, lens covered) nothing is encoded,
+ * and only a heartbeat goes out every second so viewers and the server know the stream is still there.
+ * Not thread safe, only the encode stage uses it.
+ */
+public class DeltaEncoder {
+    // Above this share of changed tiles a keyframe is about as big, and simpler to decode
+    private static final double MAX_DELTA_SHARE = 0.6;
+    // The fingerprint samples every 4th pixel of every 4th row, averaged per tile
+    private static final int FINGERPRINT_STEP = 4;
+    // Largest luma difference of a single sample that still counts as camera noise
+    private static final int MAX_STATIC_SAMPLE_DIFFERENCE = 24;
+    // Well below the 2 second timeout after which the server stops relaying a streamer
+    private static final long HEARTBEAT_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final JpegEncoder encoder;
+    private final UUID playerUUID;
+    private final int width;
+    private final int height;
+    private final int tilesX;
+    private final int tilesY;
+    // What viewers currently have on screen, BGR
+    private final byte[] reference;
+    private final int[] changedTiles;
+    private final BufferedImage[] mosaics;
+    // Average luma per tile of what viewers currently have, and of the frame being encoded
+    private final int[] sentFingerprint;
+    private final int[] fingerprint;
+    private long lastSentNanos = 0;
+    private int framesSinceKeyframe = 0;
+    private volatile boolean keyframeRequested = true;
+
+    public volatile long keyframes = 0;
+    public volatile long deltaFrames = 0;
+    public volatile long unchangedFrames = 0;
+    public volatile long heartbeats = 0;
+
+    public DeltaEncoder(JpegEncoder encoder, UUID playerUUID, int width, int height) {
+        this.encoder = encoder;
+        this.playerUUID = playerUUID;
+        this.width = width;
+        this.height = height;
+        this.tilesX = PlayerVideo.tilesX(width);
+        this.tilesY = PlayerVideo.tilesY(height);
+        this.reference = new byte[width * height * 3];
+        this.changedTiles = new int[tilesX * tilesY];
+        this.mosaics = new BufferedImage[tilesY + 1];
+        this.sentFingerprint = new int[tilesX * tilesY];
+        this.fingerprint = new int[tilesX * tilesY];
+    }
+
+    public void requestKeyframe() {
+        keyframeRequested = true;
+    }
+
+    /**
+     * Encodes the frame, which must be a TYPE_3BYTE_BGR image of the stream size.
+     * Returns a heartbeat, or null when even that isn't due, when nothing changed enough to be worth sending.
+     */
+    public PlayerVideo encode(BufferedImage image) throws IOException {
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        PlayerVideo video = new PlayerVideo(width, height, playerUUID);
+
+        if (keyframeRequested || framesSinceKeyframe >= VideoManager.keyframeInterval) {
+            return keyframe(image, pixels, video);
+        }
+
+        fingerprint(pixels, fingerprint);
+        if (isStatic() && samplesMatch(pixels)) {
+            return unchanged(video);
+        }
+
+        int changed = findChangedTiles(pixels);
+        if (changed == 0) {
+            return unchanged(video);
+        }
+        if (changed > changedTiles.length * MAX_DELTA_SHARE) {
+            return keyframe(image, pixels, video);
+        }
+
+        BufferedImage mosaic = mosaic(changed);
+        byte[] mosaicPixels = ((DataBufferByte) mosaic.getRaster().getDataBuffer()).getData();
+        int mosaicStride = mosaic.getWidth() * 3;
+        for (int i = 0; i < changed; i++) {
+            int tile = changedTiles[i];
+            copyTile(pixels, width * 3, tile % tilesX * TILE_SIZE, tile / tilesX * TILE_SIZE,
+                    mosaicPixels, mosaicStride, i % tilesX * TILE_SIZE, i / tilesX * TILE_SIZE);
+            // Viewers will have this tile after the frame
+            copyTile(pixels, width * 3, tile % tilesX * TILE_SIZE, tile / tilesX * TILE_SIZE,
+                    reference, width * 3, tile % tilesX * TILE_SIZE, tile / tilesX * TILE_SIZE);
+        }
+
+        // Only keyframes steer the quality, deltas are a lot smaller and would push it up
+        video.setFrame(encoder.encode(mosaic, false));
+        video.setTiles(changedTiles.clone(), changed);
+        framesSinceKeyframe++;
+        deltaFrames++;
+        sent();
+        return video;
+    }
+
+    private PlayerVideo keyframe(BufferedImage image, byte[] pixels, PlayerVideo video) throws IOException {
+        keyframeRequested = false;
+        framesSinceKeyframe = 0;
+        System.arraycopy(pixels, 0, reference, 0, reference.length);
+        video.setFrame(encoder.encode(image, true));
+        keyframes++;
+        sent();
+        return video;
+    }
+
+    private PlayerVideo unchanged(PlayerVideo video) {
+        unchangedFrames++;
+        if (System.nanoTime() - lastSentNanos < HEARTBEAT_INTERVAL_NANOS) {
+            return null;
+        }
+
+        // Counts towards the keyframe interval, so a picture that stays the same still gets a keyframe now and
+        // then in case a delta before it was lost
+        video.frameType = PlayerVideo.HEARTBEAT;
+        framesSinceKeyframe++;
+        heartbeats++;
+        lastSentNanos = System.nanoTime();
+        return video;
+    }
+
+    // Viewers now have the reference frame
+    private void sent() {
+        fingerprint(reference, sentFingerprint);
+        lastSentNanos = System.nanoTime();
+    }
+
+    private boolean isStatic() {
+        int threshold = VideoManager.staticThreshold;
+        for (int i = 0; i < fingerprint.length; i++) {
+            if (Math.abs(fingerprint[i] - sentFingerprint[i]) > threshold) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The same samples as the fingerprint, compared one by one with what viewers have
+    private boolean samplesMatch(byte[] pixels) {
+        int stride = width * 3;
+        for (int y = FINGERPRINT_STEP / 2; y < height; y += FINGERPRINT_STEP) {
+            for (int x = FINGERPRINT_STEP / 2; x < width; x += FINGERPRINT_STEP) {
+                int i = y * stride + x * 3;
+                if (Math.abs(luma(pixels, i) - luma(reference, i)) > MAX_STATIC_SAMPLE_DIFFERENCE) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void fingerprint(byte[] pixels, int[] result) {
+        int stride = width * 3;
+        for (int tileY = 0; tileY < tilesY; tileY++) {
+            int y0 = tileY * TILE_SIZE;
+            int y1 = Math.min(height, y0 + TILE_SIZE);
+            for (int tileX = 0; tileX < tilesX; tileX++) {
+                int x0 = tileX * TILE_SIZE;
+                int x1 = Math.min(width, x0 + TILE_SIZE);
+                int sum = 0;
+                int samples = 0;
+                for (int y = y0 + FINGERPRINT_STEP / 2; y < y1; y += FINGERPRINT_STEP) {
+                    for (int x = x0 + FINGERPRINT_STEP / 2; x < x1; x += FINGERPRINT_STEP) {
+                        int i = y * stride + x * 3;
+                        sum += luma(pixels, i);
+                        samples++;
+                    }
+                }
+                // Edge tiles cut down to a pixel or two can miss every sample, use their first pixel then
+                if (samples == 0) {
+                    int i = y0 * stride + x0 * 3;
+                    sum = luma(pixels, i);
+                    samples = 1;
+                }
+                result[tileY * tilesX + tileX] = sum / samples;
+            }
+        }
+    }
+
+    // BGR to luma, close enough for telling frames apart
+    private static int luma(byte[] pixels, int i) {
+        return ((pixels[i] & 0xFF) * 29 + (pixels[i + 1] & 0xFF) * 150 + (pixels[i + 2] & 0xFF) * 77) >> 8;
+    }
+
+    private int findChangedTiles(byte[] pixels) {
+        int threshold = VideoManager.deltaThreshold;
+        int stride = width * 3;
+        int changed = 0;
+        for (int tileY = 0; tileY < tilesY; tileY++) {
+            int y0 = tileY * TILE_SIZE;
+            int y1 = Math.min(height, y0 + TILE_SIZE);
+            for (int tileX = 0; tileX < tilesX; tileX++) {
+                int x0 = tileX * TILE_SIZE * 3;
+                int x1 = Math.min(width, (tileX + 1) * TILE_SIZE) * 3;
+                // Average difference per color channel that counts as a change
+                long limit = (long) threshold * (y1 - y0) * (x1 - x0);
+                long difference = 0;
+                for (int y = y0; y < y1 && difference <= limit; y++) {
+                    int row = y * stride;
+                    for (int i = row + x0; i < row + x1; i++) {
+                        difference += Math.abs((pixels[i] & 0xFF) - (reference[i] & 0xFF));
+                    }
+                }
+                if (difference > limit) {
+                    changedTiles[changed++] = tileY * tilesX + tileX;
+                }
+            }
+        }
+        return changed;
+    }
+
+    private BufferedImage mosaic(int tiles) {
+        int rows = (tiles + tilesX - 1) / tilesX;
+        if (mosaics[rows] == null) {
+            mosaics[rows] = new BufferedImage(tilesX * TILE_SIZE, rows * TILE_SIZE, BufferedImage.TYPE_3BYTE_BGR);
+        }
+        return mosaics[rows];
+    }
+
+    private void copyTile(byte[] src, int srcStride, int srcX, int srcY, byte[] dst, int dstStride, int dstX, int dstY) {
+        // Tiles on the right and bottom edge can be cut off by the frame size
+        int tileWidth = Math.min(TILE_SIZE, width - srcX) * 3;
+        int tileHeight = Math.min(TILE_SIZE, height - srcY);
+        for (int y = 0; y < tileHeight; y++) {
+            System.arraycopy(src, (srcY + y) * srcStride + srcX * 3, dst, (dstY + y) * dstStride + dstX * 3, tileWidth);
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package com.lichcode.webcam.video;
+
+import com.lichcode.webcam.PlayerFeeds;
+import com.lichcode.webcam.Video.PlayerVideo;
+import com.lichcode.webcam.WebcamMod;
+import com.lichcode.webcam.config.ServerConfig;
+import com.lichcode.webcam.metrics.StageTimer;
+import com.lichcode.webcam.render.buffer.DirectBufferPool;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes received JPEG frames on a small pool of worker threads and publishes them to {@link PlayerFeeds}.
+ * Decoding is lazy, frames are only kept until the player's face is drawn and asks for them with {@link #request}.
+ * Players nobody looks at cost no decoding at all.
+ * Every player has a canvas with their whole picture, keyframes replace it and delta frames patch the tiles
+ * that changed. So the backlog of a player is their last keyframe plus every delta since, a keyframe makes
+ * everything before it useless.
+ */
+public class FrameDecoder {
+    public static final AtomicLong framesDecoded = new AtomicLong();
+    public static final AtomicLong framesDropped = new AtomicLong();
+    // Frames that were replaced by a keyframe before anybody looked at them
+    public static final AtomicLong framesSkipped = new AtomicLong();
+    public static final StageTimer decodeTimer = new StageTimer("decode");
+
+    // What decoded frames are turned into. YUV420 keeps the JPEG's own color space, halving the upload and
+    // leaving the color conversion to the face shader.
+    public static volatile PixelFormat pixelFormat = readPixelFormat();
+
+    // A keyframe arrives every few seconds, a backlog this long means the stream is missing them
+    private static final int MAX_BACKLOG = 128;
+    private static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    private static final ConcurrentHashMap<UUID, Backlog> backlogs = new ConcurrentHashMap<>();
+    private static final Set<UUID> decoding = ConcurrentHashMap.newKeySet();
+    private static final ConcurrentHashMap<UUID, Canvas> canvases = new ConcurrentHashMap<>();
+    private static final ThreadPoolExecutor executor;
+
+    // Every worker keeps its own reader and destination images, so decoding a frame doesn't allocate either.
+    // Delta mosaics come in a few heights, so there is one image per size.
+    private static final ThreadLocal<ImageReader> readers = ThreadLocal.withInitial(() -> ImageIO.getImageReadersByFormatName("jpeg").next());
+    private static final ThreadLocal<HashMap<Long, BufferedImage>> destinations = ThreadLocal.withInitial(HashMap::new);
+
+    // Frames received since the last decode, guarded by its own lock
+    private static class Backlog {
+        final ArrayDeque<PlayerVideo> frames = new ArrayDeque<>();
+        // Set when the backlog overflowed, deltas are useless until the next keyframe
+        boolean waitingForKeyframe = false;
+
+        synchronized void add(PlayerVideo video) {
+            if (video.isKeyframe()) {
+                clear();
+                waitingForKeyframe = false;
+            } else if (waitingForKeyframe || frames.size() >= MAX_BACKLOG) {
+                waitingForKeyframe = true;
+                clear();
+                video.release();
+                framesDropped.incrementAndGet();
+                decodeTimer.drop();
+                return;
+            }
+            frames.add(video);
+        }
+
+        synchronized List<PlayerVideo> takeAll() {
+            List<PlayerVideo> taken = new ArrayList<>(frames);
+            frames.clear();
+            return taken;
+        }
+
+        synchronized boolean isEmpty() {
+            return frames.isEmpty();
+        }
+
+        synchronized void clear() {
+            framesSkipped.addAndGet(frames.size());
+            for (PlayerVideo frame : frames) {
+                frame.release();
+            }
+            frames.clear();
+        }
+    }
+
+    // Only touched by the worker that currently decodes the player
+    private static class Canvas {
+        final int width;
+        final int height;
+        final PixelFormat format;
+        final byte[] pixels;
+
+        Canvas(int width, int height, PixelFormat format) {
+            this.width = width;
+            this.height = height;
+            this.format = format;
+            this.pixels = new byte[format.frameBytes(width, height)];
+        }
+    }
+
+    // Decoded JPEG samples, either packed BGR or pixel interleaved YCbCr (or just Y for grayscale)
+    private record Samples(byte[] data, int width, int height, int bands, boolean ycbcr) {
+        int stride() {
+            return width * bands;
+        }
+    }
+
+    static {
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(256), (runnable) -> {
+            Thread thread = new Thread(runnable, "Webcam Decoder #" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Keeps the frame until the player's face is drawn.
+     */
+    public static void submit(PlayerVideo video) {
+        backlogs.computeIfAbsent(video.playerUUID, (uuid) -> new Backlog()).add(video);
+    }
+
+    /**
+     * Called by the renderer when it draws the player's face, decodes whatever arrived since the last call.
+     * The result shows up in the player's feed a frame or so later.
+     */
+    public static void request(UUID playerUUID) {
+        Backlog backlog = backlogs.get(playerUUID);
+        if (backlog != null && !backlog.isEmpty()) {
+            schedule(playerUUID);
+        }
+    }
+
+    private static void schedule(UUID playerUUID) {
+        // Only one worker decodes a player at a time, otherwise frames could be published out of order
+        if (!decoding.add(playerUUID)) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> decodeAll(playerUUID));
+        } catch (RejectedExecutionException e) {
+            // The frames stay in the backlog, the next request tries again
+            decoding.remove(playerUUID);
+        }
+    }
+
+    private static void decodeAll(UUID playerUUID) {
+        try {
+            Backlog backlog = backlogs.get(playerUUID);
+            if (backlog == null) {
+                return;
+            }
+
+            List<PlayerVideo> frames = backlog.takeAll();
+            Changes changes = new Changes();
+            for (PlayerVideo video : frames) {
+                try {
+                    long start = decodeTimer.start();
+                    if (apply(video, changes)) {
+                        decodeTimer.stop(start, video.frameLength);
+                        framesDecoded.incrementAndGet();
+                    } else {
+                        framesDropped.incrementAndGet();
+                        decodeTimer.drop();
+                    }
+                } catch (Exception e) {
+                    WebcamMod.LOGGER.error("Could not decode video frame", e);
+                } finally {
+                    video.release();
+                }
+            }
+
+            // Only the end result is uploaded, however many frames went into it
+            if (changes.canvas != null) {
+                PlayerFeeds.publish(copy(playerUUID, changes.canvas, changes.full ? null : changes.dirtyTiles));
+            }
+        } finally {
+            decoding.remove(playerUUID);
+        }
+    }
+
+    /**
+     * Forgets the player's canvas and backlog, the next frame that can be shown is their next keyframe.
+     */
+    public static void forget(UUID playerUUID) {
+        Backlog backlog = backlogs.remove(playerUUID);
+        if (backlog != null) {
+            backlog.clear();
+        }
+        canvases.remove(playerUUID);
+    }
+
+    /**
+     * Decodes a single frame onto the player's canvas right away on the calling thread, skipping the backlog.
+     * Returns null if the frame couldn't be used. Meant for benchmarks, the game goes through {@link #submit}.
+     */
+    public static DecodedFrame decode(PlayerVideo video) throws IOException {
+        Changes changes = new Changes();
+        if (!apply(video, changes)) {
+            return null;
+        }
+        return copy(video.playerUUID, changes.canvas, changes.full ? null : changes.dirtyTiles);
+    }
+
+    // What a batch of frames changed on a canvas
+    private static class Changes {
+        Canvas canvas;
+        boolean full = false;
+        BitSet dirtyTiles;
+    }
+
+    /**
+     * Decodes the frame onto the player's canvas and adds what it changed to changes.
+     * Returns false for a delta frame that doesn't fit the canvas, which happens until the first keyframe arrives.
+     */
+    private static boolean apply(PlayerVideo video, Changes changes) throws IOException {
+        PixelFormat format = pixelFormat;
+        if (video.isKeyframe()) {
+            Samples samples = readSamples(video, format);
+            Canvas canvas = canvases.get(video.playerUUID);
+            if (canvas == null || canvas.width != samples.width() || canvas.height != samples.height() || canvas.format != format) {
+                canvas = new Canvas(samples.width(), samples.height(), format);
+                canvases.put(video.playerUUID, canvas);
+            }
+            paint(samples, 0, 0, canvas, 0, 0, canvas.width, canvas.height);
+            changes.canvas = canvas;
+            changes.full = true;
+            return true;
+        }
+
+        Canvas canvas = canvases.get(video.playerUUID);
+        if (canvas == null || canvas.width != video.width || canvas.height != video.height || canvas.format != format) {
+            return false;
+        }
+
+        int tilesX = PlayerVideo.tilesX(canvas.width);
+        Samples mosaic = readSamples(video, format);
+        int rows = (video.tileCount + tilesX - 1) / tilesX;
+        if (mosaic.width() != tilesX * PlayerVideo.TILE_SIZE || mosaic.height() < rows * PlayerVideo.TILE_SIZE) {
+            throw new IOException("Delta frame mosaic " + mosaic.width() + "x" + mosaic.height() + " doesn't fit " + video.tileCount + " tiles");
+        }
+
+        if (changes.dirtyTiles == null) {
+            changes.dirtyTiles = new BitSet(tilesX * PlayerVideo.tilesY(canvas.height));
+        }
+        changes.canvas = canvas;
+        for (int i = 0; i < video.tileCount; i++) {
+            int tile = video.tiles[i];
+            int x = tile % tilesX * PlayerVideo.TILE_SIZE;
+            int y = tile / tilesX * PlayerVideo.TILE_SIZE;
+            int tileWidth = Math.min(PlayerVideo.TILE_SIZE, canvas.width - x);
+            int tileHeight = Math.min(PlayerVideo.TILE_SIZE, canvas.height - y);
+            paint(mosaic, i % tilesX * PlayerVideo.TILE_SIZE, i / tilesX * PlayerVideo.TILE_SIZE, canvas, x, y, tileWidth, tileHeight);
+            changes.dirtyTiles.set(tile);
+        }
+        return true;
+    }
+
+    // Copies a region of decoded samples onto the canvas
+    private static void paint(Samples samples, int srcX, int srcY, Canvas canvas, int dstX, int dstY, int width, int height) {
+        if (canvas.format == PixelFormat.YUV420) {
+            YuvPlanes.fromYCbCr(samples.data(), samples.stride(), samples.bands(), srcX, srcY,
+                    canvas.pixels, canvas.width, canvas.height, dstX, dstY, width, height);
+            return;
+        }
+
+        int canvasStride = canvas.width * 3;
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(samples.data(), (srcY + row) * samples.stride() + srcX * 3,
+                    canvas.pixels, (dstY + row) * canvasStride + dstX * 3, width * 3);
+        }
+    }
+
+    private static DecodedFrame copy(UUID playerUUID, Canvas canvas, BitSet dirtyTiles) {
+        ByteBuffer pixels = DirectBufferPool.acquire(canvas.pixels.length);
+        pixels.put(canvas.pixels);
+        pixels.flip();
+        return new DecodedFrame(playerUUID, canvas.width, canvas.height, canvas.format, pixels, dirtyTiles);
+    }
+
+    private static Samples readSamples(PlayerVideo video, PixelFormat format) throws IOException {
+        if (format == PixelFormat.YUV420) {
+            Samples raw = readRaw(video);
+            if (raw != null) {
+                return raw;
+            }
+        }
+
+        BufferedImage image = read(video);
+        byte[] bgr = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        if (format == PixelFormat.YUV420) {
+            // Only happens for JPEGs that aren't plain YCbCr, converting them ourselves is fine
+            YuvPlanes.bgrToYCbCr(bgr, bgr, image.getWidth() * image.getHeight());
+            return new Samples(bgr, image.getWidth(), image.getHeight(), 3, true);
+        }
+        return new Samples(bgr, image.getWidth(), image.getHeight(), 3, false);
+    }
+
+    /**
+     * Reads the JPEG's samples without any color conversion, which for the JFIF files we send is YCbCr.
+     * Returns null when the reader hands back a layout we can't use directly.
+     */
+    private static Samples readRaw(PlayerVideo video) throws IOException {
+        ImageReader reader = readers.get();
+        try (ImageInputStream input = new MemoryCacheImageInputStream(new ByteArrayInputStream(video.frame, 0, video.frameLength))) {
+            reader.setInput(input, true, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            if (width > ServerConfig.maxDimension || height > ServerConfig.maxDimension) {
+                throw new IOException("Video frame size " + width + "x" + height + " is not allowed");
+            }
+
+            Raster raster = reader.readRaster(0, null);
+            int bands = raster.getNumBands();
+            if ((bands != 1 && bands != 3) || !(raster.getSampleModel() instanceof PixelInterleavedSampleModel sampleModel)
+                    || !(raster.getDataBuffer() instanceof DataBufferByte dataBuffer)
+                    || sampleModel.getPixelStride() != bands || sampleModel.getScanlineStride() != width * bands
+                    || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0) {
+                return null;
+            }
+            for (int band = 0; band < bands; band++) {
+                if (sampleModel.getBandOffsets()[band] != band) {
+                    return null;
+                }
+            }
+            return new Samples(dataBuffer.getData(), width, height, bands, true);
+        } catch (IllegalArgumentException e) {
+            return null;
+        } finally {
+            reader.setInput(null);
+        }
+    }
+
+    private static BufferedImage read(PlayerVideo video) throws IOException {
+        ImageReader reader = readers.get();
+        try (ImageInputStream input = new MemoryCacheImageInputStream(new ByteArrayInputStream(video.frame, 0, video.frameLength))) {
+            reader.setInput(input, true, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            if (width > ServerConfig.maxDimension || height > ServerConfig.maxDimension) {
+                throw new IOException("Video frame size " + width + "x" + height + " is not allowed");
+            }
+            BufferedImage destination = destination(width, height);
+
+            try {
+                // Decode straight into the BGR bytes we upload
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setDestination(destination);
+                reader.read(0, param);
+            } catch (IOException | IllegalArgumentException e) {
+                // Grayscale and other unusual JPEGs can't go into a BGR image directly
+                input.seek(0);
+                reader.setInput(input, true, true);
+                Graphics2D graphics = destination.createGraphics();
+                graphics.drawImage(reader.read(0), 0, 0, null);
+                graphics.dispose();
+            }
+
+            return destination;
+        } finally {
+            reader.setInput(null);
+        }
+    }
+
+    private static BufferedImage destination(int width, int height) {
+        long size = (long) width << 32 | height;
+        return destinations.get().computeIfAbsent(size, (key) -> new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR));
+    }
+
+    // A typo in the property shouldn't take the client down with it
+    private static PixelFormat readPixelFormat() {
+        String value = System.getProperty("webcam.pixelFormat", "YUV420");
+        try {
+            return PixelFormat.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            WebcamMod.LOGGER.warn("Unknown webcam.pixelFormat '{}', using YUV420", value);
+            return PixelFormat.YUV420;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.lichcode.webcam.video;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+/**
+ * Scales camera frames down to the stream size. Works on the raw pixel arrays instead of going through Graphics2D,
+ * crops the center of the frame so the stream keeps the camera's aspect ratio and writes into a reused image.
+ * Not thread safe, the lookup tables are kept between frames.
+ */
+public class FrameScaler {
+    public enum Mode {
+        // Fastest, picks the closest source pixel
+        NEAREST,
+        // Blends the 4 closest source pixels
+        BILINEAR,
+        // Averages every source pixel that falls in the destination pixel, best for big downscales
+        BOX
+    }
+
+    private Mode mode;
+    // Source ranges of every destination column and row, rebuilt when the sizes change
+    private int[] xStart = new int[0];
+    private int[] xEnd = new int[0];
+    private int[] yStart = new int[0];
+    private int[] yEnd = new int[0];
+    private int[] xWeight = new int[0];
+    private int[] yWeight = new int[0];
+    private int cachedSourceWidth, cachedSourceHeight, cachedWidth, cachedHeight = -1;
+
+    public FrameScaler(Mode mode) {
+        this.mode = mode;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+        this.cachedHeight = -1;
+    }
+
+    /**
+     * Creates an image the scaler can write into.
+     */
+    public static BufferedImage createDestination(int width, int height) {
+        return new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+    }
+
+    /**
+     * Scales the RGB source into the destination, which must be a TYPE_3BYTE_BGR image.
+     */
+    public void scale(RawFrame source, BufferedImage destination) {
+        int width = destination.getWidth();
+        int height = destination.getHeight();
+        buildTables(source.width, source.height, width, height);
+
+        byte[] src = source.pixels;
+        byte[] dst = ((DataBufferByte) destination.getRaster().getDataBuffer()).getData();
+        switch (mode) {
+            case NEAREST -> scaleNearest(src, source.width, dst, width, height);
+            case BILINEAR -> scaleBilinear(src, source.width, dst, width, height);
+            case BOX -> scaleBox(src, source.width, dst, width, height);
+        }
+    }
+
+    private void scaleNearest(byte[] src, int sourceWidth, byte[] dst, int width, int height) {
+        int out = 0;
+        for (int y = 0; y < height; y++) {
+            int row = yStart[y] * sourceWidth;
+            for (int x = 0; x < width; x++) {
+                int in = (row + xStart[x]) * 3;
+                dst[out++] = src[in + 2];
+                dst[out++] = src[in + 1];
+                dst[out++] = src[in];
+            }
+        }
+    }
+
+    private void scaleBilinear(byte[] src, int sourceWidth, byte[] dst, int width, int height) {
+        int out = 0;
+        for (int y = 0; y < height; y++) {
+            int row0 = yStart[y] * sourceWidth;
+            int row1 = yEnd[y] * sourceWidth;
+            int wy = yWeight[y];
+            for (int x = 0; x < width; x++) {
+                int x0 = xStart[x];
+                int x1 = xEnd[x];
+                int wx = xWeight[x];
+                int topLeft = (row0 + x0) * 3;
+                int topRight = (row0 + x1) * 3;
+                int bottomLeft = (row1 + x0) * 3;
+                int bottomRight = (row1 + x1) * 3;
+                // Weights are 8 bit fixed point, go through the channels in BGR order
+                for (int c = 2; c >= 0; c--) {
+                    int top = (src[topLeft + c] & 0xFF) * (256 - wx) + (src[topRight + c] & 0xFF) * wx;
+                    int bottom = (src[bottomLeft + c] & 0xFF) * (256 - wx) + (src[bottomRight + c] & 0xFF) * wx;
+                    dst[out++] = (byte) ((top * (256 - wy) + bottom * wy) >> 16);
+                }
+            }
+        }
+    }
+
+    private void scaleBox(byte[] src, int sourceWidth, byte[] dst, int width, int height) {
+        int out = 0;
+        for (int y = 0; y < height; y++) {
+            int y0 = yStart[y];
+            int y1 = yEnd[y];
+            for (int x = 0; x < width; x++) {
+                int x0 = xStart[x];
+                int x1 = xEnd[x];
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                for (int sy = y0; sy < y1; sy++) {
+                    int in = (sy * sourceWidth + x0) * 3;
+                    for (int sx = x0; sx < x1; sx++) {
+                        r += src[in++] & 0xFF;
+                        g += src[in++] & 0xFF;
+                        b += src[in++] & 0xFF;
+                    }
+                }
+                int count = (x1 - x0) * (y1 - y0);
+                dst[out++] = (byte) (b / count);
+                dst[out++] = (byte) (g / count);
+                dst[out++] = (byte) (r / count);
+            }
+        }
+    }
+
+    private void buildTables(int sourceWidth, int sourceHeight, int width, int height) {
+        if (sourceWidth == cachedSourceWidth && sourceHeight == cachedSourceHeight && width == cachedWidth && height == cachedHeight) {
+            return;
+        }
+
+        // Crop the center of the source to the destination's aspect ratio
+        int cropWidth = sourceWidth;
+        int cropHeight = sourceHeight;
+        if ((long) sourceWidth * height > (long) sourceHeight * width) {
+            cropWidth = (int) ((long) sourceHeight * width / height);
+        } else {
+            cropHeight = (int) ((long) sourceWidth * height / width);
+        }
+        int cropX = (sourceWidth - cropWidth) / 2;
+        int cropY = (sourceHeight - cropHeight) / 2;
+
+        xStart = new int[width];
+        xEnd = new int[width];
+        xWeight = new int[width];
+        buildAxis(cropX, cropWidth, sourceWidth, width, xStart, xEnd, xWeight);
+        yStart = new int[height];
+        yEnd = new int[height];
+        yWeight = new int[height];
+        buildAxis(cropY, cropHeight, sourceHeight, height, yStart, yEnd, yWeight);
+
+        cachedSourceWidth = sourceWidth;
+        cachedSourceHeight = sourceHeight;
+        cachedWidth = width;
+        cachedHeight = height;
+    }
+
+    private void buildAxis(int offset, int cropSize, int sourceSize, int size, int[] start, int[] end, int[] weight) {
+        for (int i = 0; i < size; i++) {
+            switch (mode) {
+                case NEAREST -> start[i] = offset + Math.min(cropSize - 1, (int) (((long) i * cropSize + cropSize / 2) / size));
+                case BILINEAR -> {
+                    // Center of the destination pixel in source coordinates, 8 bit fixed point
+                    long center = ((((long) i * 2 + 1) * cropSize << 8) / (2L * size)) - 128;
+                    center = Math.max(0, Math.min(((long) cropSize - 1) << 8, center));
+                    start[i] = offset + (int) (center >> 8);
+                    end[i] = Math.min(sourceSize - 1, start[i] + 1);
+                    weight[i] = (int) (center & 0xFF);
+                }
+                case BOX -> {
+                    start[i] = offset + (int) ((long) i * cropSize / size);
+                    end[i] = Math.max(start[i] + 1, offset + (int) ((long) (i + 1) * cropSize / size));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.lichcode.webcam.video;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces the capture loop at a target frame rate. The thread is parked between frames instead of spinning, and
+ * deadlines are advanced from the previous deadline so small delays don't add up over time.
+ */
+public class FrameScheduler {
+    private long periodNanos;
+    private long nextFrame;
+    public volatile long skippedFrames = 0;
+
+    public FrameScheduler(int targetFps) {
+        setTargetFps(targetFps);
+        this.nextFrame = System.nanoTime();
+    }
+
+    public void setTargetFps(int targetFps) {
+        this.periodNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, targetFps);
+    }
+
+    /**
+     * Parks until the next frame is due. If the last frame took so long that deadlines were missed, those frames
+     * are skipped instead of being captured back to back.
+     */
+    public void awaitNextFrame() throws InterruptedException {
+        long now = System.nanoTime();
+        if (nextFrame < now) {
+            long missed = (now - nextFrame) / periodNanos;
+            if (missed > 0) {
+                skippedFrames += missed;
+                nextFrame += missed * periodNanos;
+            }
+        }
+
+        long wait;
+        while ((wait = nextFrame - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, wait);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+
+        nextFrame += periodNanos;
+    }
+}
@@ -0,0 +1,98 @@
+package com.lichcode.webcam.video;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Compresses frames to JPEG, keeping the writer and its buffers for the life of the stream.
+ * Either uses a fixed quality, or adjusts the quality every frame to stay close to a target frame size.
+ * Not thread safe, every stream uses its own encoder.
+ */
+public class JpegEncoder {
+    private static final float MIN_QUALITY = 0.1f;
+    private static final float MAX_QUALITY = 0.95f;
+    private static final double SIZE_SMOOTHING = 0.1;
+
+    private final ImageWriter writer;
+    private final JPEGImageWriteParam params;
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream(64 * 1024);
+    private volatile float quality;
+    // 0 means the quality stays fixed
+    private volatile int targetFrameBytes;
+
+    public volatile int lastFrameBytes = 0;
+    public volatile double averageFrameBytes = 0;
+
+    public JpegEncoder(float quality, int targetFrameBytes) {
+        this.writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        this.params = new JPEGImageWriteParam(null);
+        this.params.setCompressionMode(JPEGImageWriteParam.MODE_EXPLICIT);
+        setQuality(quality);
+        setTargetFrameBytes(targetFrameBytes);
+    }
+
+    public void setQuality(float quality) {
+        this.quality = Math.max(MIN_QUALITY, Math.min(MAX_QUALITY, quality));
+    }
+
+    public void setTargetFrameBytes(int targetFrameBytes) {
+        this.targetFrameBytes = Math.max(0, targetFrameBytes);
+    }
+
+    public float quality() {
+        return quality;
+    }
+
+    public byte[] encode(BufferedImage image) throws IOException {
+        return encode(image, true);
+    }
+
+    /**
+     * Encodes the image. Only images that count towards the target frame size should adapt the quality.
+     */
+    public byte[] encode(BufferedImage image, boolean adapt) throws IOException {
+        output.reset();
+        params.setCompressionQuality(quality);
+        try (ImageOutputStream ios = new MemoryCacheImageOutputStream(output)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), params);
+        } finally {
+            writer.setOutput(null);
+        }
+
+        int size = output.size();
+        lastFrameBytes = size;
+        if (adapt) {
+            averageFrameBytes = averageFrameBytes == 0 ? size : averageFrameBytes + (size - averageFrameBytes) * SIZE_SMOOTHING;
+            adaptQuality(size);
+        }
+
+        // The frame gets its own copy since it is sent after the next frame starts encoding
+        return output.toByteArray();
+    }
+
+    private void adaptQuality(int size) {
+        int target = targetFrameBytes;
+        if (target == 0) {
+            return;
+        }
+
+        // Small steps down fast, up slowly, so the quality doesn't bounce around the target
+        if (size > target * 1.1) {
+            setQuality(quality - 0.05f);
+        } else if (size < target * 0.8) {
+            setQuality(quality + 0.02f);
+        }
+    }
+
+    public void dispose() {
+        writer.dispose();
+    }
+}
@@ -0,0 +1,47 @@
+package com.lichcode.webcam.video;
+
+/**
+ * Hands values from one pipeline stage to the next. Holds at most one value, offering a new one replaces whatever
+ * the next stage hasn't picked up yet, so a slow stage always works on the newest frame.
+ */
+public class LatestSlot<T> {
+    private T value;
+    private boolean closed = false;
+    private long dropped = 0;
+
+    /**
+     * Returns the value that was replaced, or null.
+     */
+    public synchronized T offer(T value) {
+        T replaced = this.value;
+        if (replaced != null) {
+            dropped++;
+        }
+        this.value = value;
+        notifyAll();
+        return replaced;
+    }
+
+    /**
+     * Waits for a value, returns null once the slot is closed.
+     */
+    public synchronized T take() throws InterruptedException {
+        while (value == null && !closed) {
+            wait();
+        }
+
+        T taken = value;
+        value = null;
+        return taken;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        value = null;
+        notifyAll();
+    }
+
+    public synchronized long dropped() {
+        return dropped;
+    }
+}
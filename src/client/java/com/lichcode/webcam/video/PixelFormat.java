@@ -0,0 +1,26 @@
+package com.lichcode.webcam.video;
+
+/**
+ * How the pixels of a {@link DecodedFrame} are laid out.
+ */
+public enum PixelFormat {
+    // 3 bytes per pixel, blue green red
+    BGR,
+    // A full size Y plane followed by quarter size U and V planes, 1.5 bytes per pixel
+    YUV420;
+
+    public int frameBytes(int width, int height) {
+        return switch (this) {
+            case BGR -> width * height * 3;
+            case YUV420 -> width * height + 2 * chromaWidth(width) * chromaHeight(height);
+        };
+    }
+
+    public static int chromaWidth(int width) {
+        return (width + 1) / 2;
+    }
+
+    public static int chromaHeight(int height) {
+        return (height + 1) / 2;
+    }
+}
@@ -0,0 +1,19 @@
+package com.lichcode.webcam.video;
+
+/**
+ * A frame straight from the camera, 3 bytes per pixel in RGB order. The pixel array is reused between frames and
+ * only grows when the camera resolution does.
+ */
+public class RawFrame {
+    public byte[] pixels = new byte[0];
+    public int width;
+    public int height;
+
+    public void resize(int width, int height) {
+        this.width = width;
+        this.height = height;
+        if (pixels.length < width * height * 3) {
+            pixels = new byte[width * height * 3];
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.lichcode.webcam.video;
+
+import com.lichcode.webcam.Video.TestPattern;
+import com.lichcode.webcam.WebcamMod;
+
+/**
+ * A fake camera showing a moving test pattern, for machines without a camera.
+ * Pick it in the settings screen, or start the game with -Dwebcam.synthetic=640x480@30 to use it instead
+ * of any real camera.
+ */
+public class SyntheticCaptureSource implements CaptureSource {
+    public static final String NAME = "Synthetic test pattern";
+
+    private final int width;
+    private final int height;
+    private final int fps;
+    private long startNanos;
+
+    public SyntheticCaptureSource(int width, int height, int fps) {
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+    }
+
+    /**
+     * The source asked for with the webcam.synthetic system property, or null when it isn't set.
+     */
+    public static SyntheticCaptureSource fromProperty() {
+        String value = System.getProperty("webcam.synthetic");
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            String[] sizeAndFps = value.split("@");
+            String[] size = sizeAndFps[0].split("x");
+            int fps = sizeAndFps.length > 1 ? Integer.parseInt(sizeAndFps[1]) : 30;
+            return new SyntheticCaptureSource(Integer.parseInt(size[0]), Integer.parseInt(size[1]), fps);
+        } catch (RuntimeException e) {
+            WebcamMod.LOGGER.warn("Ignoring webcam.synthetic={}, expected something like 640x480@30", value);
+            return new SyntheticCaptureSource(640, 480, 30);
+        }
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public void open() {
+        startNanos = System.nanoTime();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean grab(RawFrame frame) {
+        // The pattern moves at the source's frame rate, however often it is grabbed
+        long frameNumber = (System.nanoTime() - startNanos) * fps / 1_000_000_000L;
+        frame.resize(width, height);
+        TestPattern.fill(frame.pixels, width, height, frameNumber);
+        return true;
+    }
+}
@@ -1,33 +1,40 @@
 package com.lichcode.webcam.video;
 
 import com.lichcode.webcam.WebcamMod;
-import com.lichcode.webcam.Video.PlayerVideo;
 import com.github.sarxos.webcam.*;
 import org.jetbrains.annotations.Nullable;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriter;
-import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
-import javax.imageio.stream.ImageOutputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.List;
 
 
+/**
+ * The camera the capture stage takes frames from, a real one or the synthetic test pattern.
+ */
 public class VideoCamara {
-    private static Webcam webcam;
+    private static volatile CaptureSource source;
+
+    /**
+     * Opens the first usable camera and returns it, give it back to {@link #release} when done.
+     */
+    public static CaptureSource init() {
+        SyntheticCaptureSource synthetic = SyntheticCaptureSource.fromProperty();
+        if (synthetic != null) {
+            synthetic.open();
+            source = synthetic;
+            WebcamMod.LOGGER.info("Using webcam: {}", synthetic.name());
+            return synthetic;
+        }
 
-    public static void init() {
         for(Webcam wc : Webcam.getWebcams()) {
             try {
-                wc.open();
-                webcam = wc;
+                WebcamCaptureSource camera = new WebcamCaptureSource(wc);
+                camera.open();
+                source = camera;
                 WebcamMod.LOGGER.info("Using webcam: {}", wc.getName());
-                return;
+                return camera;
             } catch (WebcamException e) {
                 WebcamMod.LOGGER.info("Webcam {} not usable, trying next one.", wc.getName());
             }
@@ -36,59 +43,54 @@ public class VideoCamara {
         throw new WebcamLockException("All webcams in use!");
     }
 
-    public static void release() {
-        webcam.close();
+    /**
+     * Closes the camera init returned, unless it was switched or opened again since.
+     */
+    public static void release(CaptureSource opened) {
+        if (opened != null && opened == source) {
+            opened.close();
+        }
     }
 
     public static List<String> getWebcamList() {
-        return Webcam.getWebcams().stream().map((wc) -> wc.getName()).toList();
+        List<String> names = new ArrayList<>(Webcam.getWebcams().stream().map((wc) -> wc.getName()).toList());
+        names.add(SyntheticCaptureSource.NAME);
+        return names;
     }
 
     public static void setWebcamByName(String name) {
-        Webcam wc = Webcam.getWebcamByName(name);
-        if (wc == null) {
-            throw new WebcamException("Webcam not found");
-        }
-        webcam.close();
-        try {
-            wc.open();
-        } catch (WebcamException e) {
-            throw e;
+        CaptureSource next;
+        if (name.equals(SyntheticCaptureSource.NAME)) {
+            next = new SyntheticCaptureSource(640, 480, 30);
+        } else {
+            Webcam wc = Webcam.getWebcamByName(name);
+            if (wc == null) {
+                throw new WebcamException("Webcam not found");
+            }
+            next = new WebcamCaptureSource(wc);
         }
 
-        webcam = wc;
+        if (source != null) {
+            source.close();
+        }
+        next.open();
+        source = next;
     }
 
     public static String getCurrentWebcam() {
-        if (webcam == null) {
+        if (source == null) {
             return null;
         }
 
-        return webcam.getName();
+        return source.name();
     }
 
-    public static void get(PlayerVideo playerVideo) throws IOException {
-        BufferedImage image = webcam.getImage();
-        // Resize image to defined size
-        // TODO: maybe add x/y offset so user can define size
-        image = resize(image, playerVideo.width, playerVideo.height);
-
-        // Compress image using JPEG
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ImageOutputStream ios = ImageIO.createImageOutputStream(baos);
-        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
-        ImageWriter writer = writers.next();
-        JPEGImageWriteParam jpegParams = new JPEGImageWriteParam(null);
-        jpegParams.setCompressionMode(JPEGImageWriteParam.MODE_EXPLICIT);
-        jpegParams.setCompressionQuality(1);
-        writer.setOutput(ios);
-        IIOImage outputImage = new IIOImage(image, null, null);
-
-        writer.write(null, outputImage, jpegParams);
-        writer.dispose();
-        ios.close();
-        // Save compressed image to object
-        playerVideo.setFrame(baos.toByteArray());
+    /**
+     * Copies the camera's current frame into the raw frame.
+     * Returns false when the camera has nothing to give.
+     */
+    public static boolean grab(RawFrame frame) {
+        return source.grab(frame);
     }
 
     public static BufferedImage resize(BufferedImage original, int width, int height) {
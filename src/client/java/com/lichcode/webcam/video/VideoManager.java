@@ -1,59 +1,130 @@
 package com.lichcode.webcam.video;
 
-import com.lichcode.webcam.WebcamMod;
-import com.lichcode.webcam.PlayerFeeds;
-import com.lichcode.webcam.Video.PlayerVideo;
-import com.lichcode.webcam.VideoFramePayload;
-import net.fabricmc.fabric.api.client.networking.v1.ClientPlayNetworking;
+import com.lichcode.webcam.StreamSettingsPayload;
+import com.lichcode.webcam.metrics.StageTimer;
 import net.minecraft.client.MinecraftClient;
 
-import java.io.IOException;
-import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class VideoManager  {
-    public static boolean running = false;
-    public static PlayerVideo videoFeed;
+    public static volatile boolean running = false;
+    public static VideoPipeline pipeline;
+    // Size of the video we'd like to send, the server's limits may make it smaller
+    public static int frameWidth = 200;
+    public static int frameHeight = 200;
+    // Frames per second we'd like to send
+    public static int targetFps = 10;
+    // Limits the server sent, null on servers that didn't send any
+    public static volatile StreamSettingsPayload serverLimits = null;
+    // How camera frames are scaled down to the stream size
+    public static FrameScaler.Mode scaleMode = FrameScaler.Mode.BOX;
+    // JPEG quality, used as the starting point when a target frame size is set
+    public static float jpegQuality = 0.7f;
+    // Size in bytes the encoder tries to keep every frame at, 0 keeps the quality fixed
+    public static int targetFrameBytes = 0;
+    // Frames between keyframes, everything in between only sends the tiles that changed
+    public static int keyframeInterval = 50;
+    // Average difference per color channel before a tile counts as changed
+    public static int deltaThreshold = 6;
+    // Average luma difference of any tile before the picture counts as changed at all, below it only heartbeats are sent
+    public static int staticThreshold = 3;
+    // Fragment ids of our frames. Not reset when the pipeline restarts, the server ignores ids older than the
+    // last frame it put together.
+    public static final AtomicInteger nextFrameId = new AtomicInteger();
+
+    public static final StageTimer captureTimer = new StageTimer("capture");
+    public static final StageTimer scaleTimer = new StageTimer("scale");
+    public static final StageTimer encodeTimer = new StageTimer("encode");
+    public static final StageTimer sendTimer = new StageTimer("send");
 
     public static void startCameraLoop() {
+        VideoPipeline previous = pipeline;
+        if (previous != null) {
+            previous.stop();
+        }
+
         running = true;
-        videoFeed = new PlayerVideo(200, 200, MinecraftClient.getInstance().player.getUuidAsString());
-        new Thread(() -> {
-            VideoCamara.init();
-            WebcamMod.LOGGER.info("Camera loop started");
-
-            // Start behind to run first loop
-            Date nextUpdate = new Date();
-            while(running) {
-                // Target 30fps sent to the server, I don't know if this actually helps
-                Date now = new Date();
-                if (now.toInstant().isAfter(nextUpdate.toInstant())) {
-                    // 50 millis into the future
-                    nextUpdate.setTime(now.getTime() + 100);
-                    loop();
-                }
-            }
-            WebcamMod.LOGGER.info("Camera loop stopped");
-            VideoCamara.release();
-        }).start();
-    }
-
-    public static void loop() {
-        try {
-            VideoCamara.get(videoFeed);
-            if (ClientPlayNetworking.canSend(VideoFramePayload.ID)) {
-                // Update my own player feed for rendering my own face (when you press F5)
-                PlayerFeeds.update(videoFeed);
-                // Send video to server
-                ClientPlayNetworking.send(new VideoFramePayload(videoFeed));
-            } else {
-                WebcamMod.LOGGER.warn("Could not send video frame, network handler is null???");
-            }
-        } catch (IOException e) {
-            WebcamMod.LOGGER.error("Could not get image from webcam", e);
+        pipeline = new VideoPipeline(MinecraftClient.getInstance().player.getUuid(), streamWidth(), streamHeight(), streamFps());
+        // Doesn't block, the new pipeline waits for the old one to close the camera on its own thread
+        pipeline.start(previous);
+    }
+
+    /**
+     * Called when the server sends its limits, restarts the stream if its size has to change.
+     */
+    public static void setServerLimits(StreamSettingsPayload limits) {
+        serverLimits = limits;
+        if (pipeline == null) {
+            return;
+        }
+
+        if (pipeline.width() != streamWidth() || pipeline.height() != streamHeight()) {
+            startCameraLoop();
+        } else {
+            pipeline.scheduler().setTargetFps(streamFps());
+            pipeline.encoder().setTargetFrameBytes(streamFrameBytes());
+        }
+    }
+
+    public static int streamWidth() {
+        return serverLimits == null ? frameWidth : Math.min(frameWidth, serverLimits.maxWidth());
+    }
+
+    public static int streamHeight() {
+        return serverLimits == null ? frameHeight : Math.min(frameHeight, serverLimits.maxHeight());
+    }
+
+    public static int streamFps() {
+        return serverLimits == null ? targetFps : Math.min(targetFps, serverLimits.maxFps());
+    }
+
+    /**
+     * The frame size the encoder aims for, the smaller of our own target and the server's budget spread over
+     * every frame of a second. 0 when neither sets one.
+     */
+    public static int streamFrameBytes() {
+        if (serverLimits == null) {
+            return targetFrameBytes;
+        }
+
+        int budget = serverLimits.maxBytesPerSecond() / Math.max(1, streamFps());
+        return targetFrameBytes > 0 ? Math.min(targetFrameBytes, budget) : budget;
+    }
+
+    public static void setTargetFps(int fps) {
+        targetFps = fps;
+        if (pipeline != null) {
+            pipeline.scheduler().setTargetFps(streamFps());
+            pipeline.encoder().setTargetFrameBytes(streamFrameBytes());
+        }
+    }
+
+    public static void setJpegQuality(float quality) {
+        jpegQuality = quality;
+        if (pipeline != null) {
+            pipeline.encoder().setQuality(quality);
+        }
+    }
+
+    public static void setTargetFrameBytes(int bytes) {
+        targetFrameBytes = bytes;
+        if (pipeline != null) {
+            pipeline.encoder().setTargetFrameBytes(streamFrameBytes());
+        }
+    }
+
+    public static void requestKeyframe() {
+        if (pipeline != null) {
+            pipeline.deltaEncoder().requestKeyframe();
         }
     }
 
     public static void stopThread() {
         running = false;
+        serverLimits = null;
+        if (pipeline != null) {
+            pipeline.stop();
+            pipeline = null;
+        }
     }
 }
@@ -0,0 +1,332 @@
+package com.lichcode.webcam.video;
+
+import com.lichcode.webcam.PlayerFeeds;
+import com.lichcode.webcam.Video.PlayerVideo;
+import com.lichcode.webcam.Video.PlayerVideoPacketCodec;
+import com.lichcode.webcam.VideoFragmentPayload;
+import com.lichcode.webcam.WebcamMod;
+import com.lichcode.webcam.metrics.StageTimer;
+import com.lichcode.webcam.render.buffer.DirectBufferPool;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.fabricmc.fabric.api.client.networking.v1.ClientPlayNetworking;
+import net.minecraft.network.PacketByteBuf;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Runs capture, scale, encode and send on their own threads. Stages are connected by {@link LatestSlot}s, so the
+ * frame rate is limited by the slowest stage instead of the sum of all of them.
+ * Camera frames and scaled images are recycled through small free lists instead of being allocated every frame.
+ */
+public class VideoPipeline {
+    // One buffer being filled, one waiting in the slot and one being read by the next stage
+    private static final int BUFFERS_PER_STAGE = 3;
+    // How long a new pipeline waits for each of the old one's threads, a camera grab can take a frame or two
+    private static final long STOP_TIMEOUT_MILLIS = 2000;
+    // Pause after a failed grab before trying the camera again
+    private static final long CAPTURE_RETRY_MILLIS = 500;
+
+    private final UUID playerUUID;
+    private final int width;
+    private final int height;
+    private final FrameScheduler scheduler;
+    private final FrameScaler scaler;
+    private final JpegEncoder encoder;
+    private final DeltaEncoder deltaEncoder;
+
+    private final ArrayBlockingQueue<RawFrame> freeRawFrames = new ArrayBlockingQueue<>(BUFFERS_PER_STAGE);
+    private final ArrayBlockingQueue<BufferedImage> freeScaledImages = new ArrayBlockingQueue<>(BUFFERS_PER_STAGE);
+    private final LatestSlot<RawFrame> captured = new LatestSlot<>();
+    private final LatestSlot<BufferedImage> scaled = new LatestSlot<>();
+    private final LatestSlot<PlayerVideo> encoded = new LatestSlot<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean running = false;
+    // The pipeline this one replaced, the capture thread waits for it before opening the camera
+    private volatile VideoPipeline previous;
+    // Only used by the scale stage
+    private byte[] previewYCbCr;
+    private byte[] previewPlanes;
+
+    private interface Stage<I, O> {
+        O process(I input) throws Exception;
+    }
+
+    public VideoPipeline(UUID playerUUID, int width, int height, int targetFps) {
+        this.playerUUID = playerUUID;
+        this.width = width;
+        this.height = height;
+        this.scheduler = new FrameScheduler(targetFps);
+        this.scaler = new FrameScaler(VideoManager.scaleMode);
+        this.encoder = new JpegEncoder(VideoManager.jpegQuality, VideoManager.streamFrameBytes());
+        this.deltaEncoder = new DeltaEncoder(encoder, playerUUID, width, height);
+        for (int i = 0; i < BUFFERS_PER_STAGE; i++) {
+            freeRawFrames.add(new RawFrame());
+            freeScaledImages.add(FrameScaler.createDestination(width, height));
+        }
+    }
+
+    /**
+     * Starts the stage threads. The previous pipeline, if there is one, must already be stopped, its threads
+     * are waited for on the capture thread instead of the caller's.
+     */
+    public void start(VideoPipeline previous) {
+        this.previous = previous;
+        running = true;
+        startThread("Webcam Capture", this::captureLoop);
+        startThread("Webcam Scale", () -> stageLoop(captured, scaled, freeScaledImages::offer, VideoManager.scaleTimer, this::scale));
+        startThread("Webcam Encode", () -> {
+            stageLoop(scaled, encoded, this::skipped, VideoManager.encodeTimer, this::encode);
+            encoder.dispose();
+        });
+        startThread("Webcam Send", () -> stageLoop(encoded, null, null, VideoManager.sendTimer, this::send));
+    }
+
+    /**
+     * Tells the stage threads to stop without waiting for them, this is called on the render thread.
+     */
+    public void stop() {
+        running = false;
+        captured.close();
+        scaled.close();
+        encoded.close();
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+    }
+
+    // The next pipeline opens the same camera, the capture thread has to be done closing it first.
+    // Keeps waiting when interrupted, otherwise a pipeline stopped right away would let the one after it
+    // open the camera while the one before is still closing it.
+    private void awaitStopped() {
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            while (true) {
+                try {
+                    thread.join(STOP_TIMEOUT_MILLIS);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public FrameScheduler scheduler() {
+        return scheduler;
+    }
+
+    public FrameScaler scaler() {
+        return scaler;
+    }
+
+    public JpegEncoder encoder() {
+        return encoder;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public DeltaEncoder deltaEncoder() {
+        return deltaEncoder;
+    }
+
+    public long droppedFrames() {
+        return captured.dropped() + scaled.dropped() + encoded.dropped();
+    }
+
+    private void startThread(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+
+    private void captureLoop() {
+        if (previous != null) {
+            previous.awaitStopped();
+            previous = null;
+        }
+        if (!running) {
+            return;
+        }
+
+        CaptureSource source = VideoCamara.init();
+        WebcamMod.LOGGER.info("Camera loop started");
+        try {
+            while (running) {
+                try {
+                    scheduler.awaitNextFrame();
+                    grab();
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Exception e) {
+                    // Happens when the camera is switched in the middle of a grab, or unplugged
+                    WebcamMod.LOGGER.error("Could not get image from webcam", e);
+                    Thread.sleep(CAPTURE_RETRY_MILLIS);
+                }
+            }
+        } catch (InterruptedException ignored) {
+        } finally {
+            WebcamMod.LOGGER.info("Camera loop stopped");
+            VideoCamara.release(source);
+        }
+    }
+
+    private void grab() {
+        // Every buffer is still in use further down the pipeline, skip this frame
+        RawFrame frame = freeRawFrames.poll();
+        if (frame == null) {
+            VideoManager.captureTimer.drop();
+            return;
+        }
+
+        long start = VideoManager.captureTimer.start();
+        boolean grabbed = false;
+        try {
+            grabbed = VideoCamara.grab(frame);
+        } finally {
+            if (!grabbed) {
+                freeRawFrames.offer(frame);
+            }
+        }
+        if (!grabbed) {
+            return;
+        }
+        VideoManager.captureTimer.stop(start, (long) frame.width * frame.height * 3);
+
+        RawFrame replaced = captured.offer(frame);
+        if (replaced != null) {
+            VideoManager.captureTimer.drop();
+            freeRawFrames.offer(replaced);
+        }
+    }
+
+    private <I, O> void stageLoop(LatestSlot<I> input, LatestSlot<O> output, Consumer<O> recycle, StageTimer timer, Stage<I, O> stage) {
+        while (running) {
+            I value;
+            try {
+                value = input.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (value == null) {
+                return;
+            }
+
+            try {
+                long start = timer.start();
+                O result = stage.process(value);
+                timer.stop(start);
+                if (output != null && result != null) {
+                    O replaced = output.offer(result);
+                    if (replaced != null) {
+                        // The next stage never got to it
+                        timer.drop();
+                        if (recycle != null) {
+                            recycle.accept(replaced);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                WebcamMod.LOGGER.error("Webcam {} stage failed", timer.name, e);
+            }
+        }
+    }
+
+    private BufferedImage scale(RawFrame frame) {
+        BufferedImage image = freeScaledImages.poll();
+        try {
+            if (image == null) {
+                // Every image is still in use further down the pipeline, skip this frame
+                return null;
+            }
+
+            scaler.scale(frame, image);
+            publishPreview(image);
+            return image;
+        } finally {
+            freeRawFrames.offer(frame);
+        }
+    }
+
+    /**
+     * Shows our own face (F5 and the settings screen) straight from the scaled frame, without the JPEG
+     * round trip. Runs for every captured frame, even ones the encoder skips.
+     */
+    private void publishPreview(BufferedImage image) {
+        byte[] bgr = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        PixelFormat format = FrameDecoder.pixelFormat;
+        ByteBuffer pixels = DirectBufferPool.acquire(format.frameBytes(width, height));
+        if (format == PixelFormat.YUV420) {
+            // Faces are drawn from a single texture format, so ours has to match everyone else's
+            if (previewYCbCr == null) {
+                previewYCbCr = new byte[width * height * 3];
+                previewPlanes = new byte[format.frameBytes(width, height)];
+            }
+            YuvPlanes.bgrToYCbCr(bgr, previewYCbCr, width * height);
+            YuvPlanes.fromYCbCr(previewYCbCr, width * 3, 3, 0, 0, previewPlanes, width, height, 0, 0, width, height);
+            pixels.put(previewPlanes);
+        } else {
+            pixels.put(bgr, 0, width * height * 3);
+        }
+        pixels.flip();
+        PlayerFeeds.publishLocal(new DecodedFrame(playerUUID, width, height, format, pixels, null));
+    }
+
+    private PlayerVideo encode(BufferedImage image) throws Exception {
+        try {
+            // A new video per frame, the previous one may still be waiting to be sent.
+            // Null when nothing changed since the last frame.
+            PlayerVideo video = deltaEncoder.encode(image);
+            if (video != null) {
+                VideoManager.encodeTimer.addBytes(video.frameLength);
+            }
+            return video;
+        } finally {
+            freeScaledImages.offer(image);
+        }
+    }
+
+    private void skipped(PlayerVideo video) {
+        // The encoder thinks viewers have the tiles of a skipped delta, so start over with a keyframe
+        if (video.frameType == PlayerVideo.DELTA) {
+            deltaEncoder.requestKeyframe();
+        }
+    }
+
+    private Void send(PlayerVideo video) {
+        if (!ClientPlayNetworking.canSend(VideoFragmentPayload.ID)) {
+            WebcamMod.LOGGER.warn("Could not send video frame, network handler is null???");
+            return null;
+        }
+
+        // Send video to server, in pieces small enough not to hold up other packets
+        ByteBuf serialized = Unpooled.buffer();
+        try {
+            PlayerVideoPacketCodec.PACKET_CODEC.encode(new PacketByteBuf(serialized), video);
+            VideoManager.sendTimer.addBytes(serialized.readableBytes());
+            for (VideoFragmentPayload fragment : VideoFragmentPayload.split(playerUUID, VideoManager.nextFrameId.getAndIncrement(), serialized)) {
+                ClientPlayNetworking.send(fragment);
+            }
+        } finally {
+            serialized.release();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,45 @@
+package com.lichcode.webcam.video;
+
+import com.github.sarxos.webcam.Webcam;
+
+import java.awt.*;
+import java.nio.ByteBuffer;
+
+/**
+ * A real camera through webcam-capture.
+ */
+public class WebcamCaptureSource implements CaptureSource {
+    private final Webcam webcam;
+
+    public WebcamCaptureSource(Webcam webcam) {
+        this.webcam = webcam;
+    }
+
+    @Override
+    public String name() {
+        return webcam.getName();
+    }
+
+    @Override
+    public void open() {
+        webcam.open();
+    }
+
+    @Override
+    public void close() {
+        webcam.close();
+    }
+
+    @Override
+    public boolean grab(RawFrame frame) {
+        Dimension size = webcam.getViewSize();
+        if (size == null || !webcam.isOpen()) {
+            return false;
+        }
+
+        // Straight into the raw frame, without going through a BufferedImage
+        frame.resize(size.width, size.height);
+        webcam.getImageBytes(ByteBuffer.wrap(frame.pixels, 0, size.width * size.height * 3));
+        return true;
+    }
+}
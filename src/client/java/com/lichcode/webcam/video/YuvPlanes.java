@@ -0,0 +1,72 @@
+package com.lichcode.webcam.video;
+
+/**
+ * Writes pixels into YUV 4:2:0 planes laid out like {@link PixelFormat#YUV420}. Chroma is averaged over 2x2 blocks,
+ * regions always start on even coordinates so blocks never straddle two regions.
+ * Uses the full range BT.601 matrix JPEG uses, the face shader converts back with the same one.
+ */
+public class YuvPlanes {
+    /**
+     * Copies a region of pixel interleaved YCbCr (3 bands) or grayscale (1 band) samples, as read from a JPEG
+     * without color conversion, into the planes.
+     */
+    public static void fromYCbCr(byte[] src, int srcStride, int bands, int srcX, int srcY,
+                                 byte[] planes, int width, int height, int dstX, int dstY, int regionWidth, int regionHeight) {
+        int chromaWidth = PixelFormat.chromaWidth(width);
+        int uOffset = width * height;
+        int vOffset = uOffset + chromaWidth * PixelFormat.chromaHeight(height);
+
+        for (int y = 0; y < regionHeight; y++) {
+            int src0 = (srcY + y) * srcStride + srcX * bands;
+            int dst0 = (dstY + y) * width + dstX;
+            for (int x = 0; x < regionWidth; x++) {
+                planes[dst0 + x] = src[src0 + x * bands];
+            }
+        }
+
+        for (int y = 0; y < regionHeight; y += 2) {
+            int rows = Math.min(2, regionHeight - y);
+            int chroma0 = (dstY + y) / 2 * chromaWidth + dstX / 2;
+            for (int x = 0; x < regionWidth; x += 2) {
+                int columns = Math.min(2, regionWidth - x);
+                if (bands == 1) {
+                    planes[uOffset + chroma0 + x / 2] = (byte) 128;
+                    planes[vOffset + chroma0 + x / 2] = (byte) 128;
+                    continue;
+                }
+
+                int cb = 0;
+                int cr = 0;
+                for (int row = 0; row < rows; row++) {
+                    int i = (srcY + y + row) * srcStride + (srcX + x) * 3;
+                    for (int column = 0; column < columns; column++) {
+                        cb += src[i + column * 3 + 1] & 0xFF;
+                        cr += src[i + column * 3 + 2] & 0xFF;
+                    }
+                }
+                int samples = rows * columns;
+                planes[uOffset + chroma0 + x / 2] = (byte) (cb / samples);
+                planes[vOffset + chroma0 + x / 2] = (byte) (cr / samples);
+            }
+        }
+    }
+
+    /**
+     * Converts packed BGR pixels into pixel interleaved YCbCr, for frames that didn't come out of a JPEG as YCbCr.
+     */
+    public static void bgrToYCbCr(byte[] bgr, byte[] ycbcr, int pixels) {
+        for (int i = 0; i < pixels * 3; i += 3) {
+            int b = bgr[i] & 0xFF;
+            int g = bgr[i + 1] & 0xFF;
+            int r = bgr[i + 2] & 0xFF;
+            // Fixed point, the factors are scaled by 2^16
+            ycbcr[i] = (byte) ((19595 * r + 38470 * g + 7471 * b + 32768) >> 16);
+            ycbcr[i + 1] = (byte) clamp(((-11059 * r - 21709 * g + 32768 * b + 32768) >> 16) + 128);
+            ycbcr[i + 2] = (byte) clamp(((32768 * r - 27439 * g - 5329 * b + 32768) >> 16) + 128);
+        }
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
@@ -0,0 +1,70 @@
+package com.lichcode.webcam.bench;
+
+import com.lichcode.webcam.Video.PlayerVideo;
+import com.lichcode.webcam.Video.PlayerVideoPacketCodec;
+import com.lichcode.webcam.VideoFragmentPayload;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.PacketByteBuf;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What relaying one frame to N players costs the server. The original relay built a payload per recipient and
+ * every connection serialized the whole frame, VideoRelay serializes and splits it once and the connections
+ * only write the fragments out.
+ * Runs without a server, so the writes into a buffer stand in for the connections.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FanOutBenchmark {
+    @Param({"1", "10", "50", "200"})
+    public int recipients;
+
+    @Param({"200", "480"})
+    public int size;
+
+    private PlayerVideo video;
+    private ByteBuf output;
+    private int frameId = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        video = new PlayerVideo(size, size, UUID.randomUUID());
+        video.setFrame(SyntheticFrames.jpeg(size, size, 0.9f, 0));
+        output = Unpooled.buffer(video.frameLength * 2);
+    }
+
+    @Benchmark
+    public int perRecipient() {
+        int bytes = 0;
+        for (int i = 0; i < recipients; i++) {
+            output.clear();
+            PlayerVideoCodecBenchmark.LegacyCodec.encode(new PacketByteBuf(output), video.playerUUID.toString(), video);
+            bytes += output.readableBytes();
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public int shared() {
+        ByteBuf serialized = Unpooled.buffer();
+        PlayerVideoPacketCodec.PACKET_CODEC.encode(new PacketByteBuf(serialized), video);
+        List<VideoFragmentPayload> fragments = VideoFragmentPayload.split(video.playerUUID, frameId++, serialized);
+        serialized.release();
+
+        int bytes = 0;
+        for (int i = 0; i < recipients; i++) {
+            for (VideoFragmentPayload fragment : fragments) {
+                output.clear();
+                VideoFragmentPayload.CODEC.encode(new PacketByteBuf(output), fragment);
+                bytes += output.readableBytes();
+            }
+        }
+        return bytes;
+    }
+}
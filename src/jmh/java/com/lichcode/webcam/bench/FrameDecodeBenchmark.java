@@ -0,0 +1,67 @@
+package com.lichcode.webcam.bench;
+
+import com.lichcode.webcam.Video.PlayerVideo;
+import com.lichcode.webcam.video.DecodedFrame;
+import com.lichcode.webcam.video.DeltaEncoder;
+import com.lichcode.webcam.video.FrameDecoder;
+import com.lichcode.webcam.video.JpegEncoder;
+import com.lichcode.webcam.video.PixelFormat;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the original PlayerVideo.asByteBuffer decode with FrameDecoder, for keyframes and delta frames
+ * in both texture formats.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameDecodeBenchmark {
+    @Param({"BGR", "YUV420"})
+    public PixelFormat format;
+
+    private PlayerVideo keyframe;
+    private PlayerVideo delta;
+
+    @Setup
+    public void setup() throws IOException {
+        FrameDecoder.pixelFormat = format;
+        UUID uuid = UUID.randomUUID();
+        DeltaEncoder encoder = new DeltaEncoder(new JpegEncoder(0.7f, 0), uuid, 200, 200);
+        keyframe = encoder.encode(SyntheticFrames.bgr(200, 200, 0));
+        delta = encoder.encode(SyntheticFrames.bgr(200, 200, 6));
+        // Delta frames need a canvas to go on
+        FrameDecoder.decode(keyframe).release();
+    }
+
+    @TearDown
+    public void tearDown() {
+        FrameDecoder.forget(keyframe.playerUUID);
+    }
+
+    @Benchmark
+    public ByteBuffer asByteBuffer() {
+        return keyframe.asByteBuffer();
+    }
+
+    @Benchmark
+    public int decodeKeyframe() throws IOException {
+        return release(FrameDecoder.decode(keyframe));
+    }
+
+    @Benchmark
+    public int decodeDelta() throws IOException {
+        return release(FrameDecoder.decode(delta));
+    }
+
+    private static int release(DecodedFrame frame) {
+        // The renderer gives the buffer back to the pool once it's uploaded
+        int width = frame.width;
+        frame.release();
+        return width;
+    }
+}
@@ -0,0 +1,44 @@
+package com.lichcode.webcam.bench;
+
+import com.lichcode.webcam.video.FrameScaler;
+import com.lichcode.webcam.video.RawFrame;
+import com.lichcode.webcam.video.VideoCamara;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the Graphics2D resize the capture loop used with FrameScaler, scaling a 720p camera frame to 200x200.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameScalerBenchmark {
+    @Param({"NEAREST", "BILINEAR", "BOX"})
+    public FrameScaler.Mode mode;
+
+    private BufferedImage cameraImage;
+    private RawFrame rawFrame;
+    private FrameScaler scaler;
+    private BufferedImage destination;
+
+    @Setup
+    public void setup() {
+        cameraImage = SyntheticFrames.image(1280, 720, 0);
+        rawFrame = SyntheticFrames.raw(cameraImage);
+        scaler = new FrameScaler(mode);
+        destination = FrameScaler.createDestination(200, 200);
+    }
+
+    @Benchmark
+    public BufferedImage graphics2d() {
+        return VideoCamara.resize(cameraImage, 200, 200);
+    }
+
+    @Benchmark
+    public BufferedImage frameScaler() {
+        scaler.scale(rawFrame, destination);
+        return destination;
+    }
+}
@@ -0,0 +1,68 @@
+package com.lichcode.webcam.bench;
+
+import com.lichcode.webcam.Video.PlayerVideo;
+import com.lichcode.webcam.video.DeltaEncoder;
+import com.lichcode.webcam.video.JpegEncoder;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a plain ImageIO.write with the reused JpegEncoder, and what the delta encoder costs for keyframes
+ * and for frames where only the face moved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JpegEncodeBenchmark {
+    @Param({"200", "480"})
+    public int size;
+
+    private BufferedImage[] frames;
+    private JpegEncoder encoder;
+    private DeltaEncoder deltaEncoder;
+    private int frame = 0;
+
+    @Setup
+    public void setup() {
+        // The face moves a few pixels between the two frames, the background only gets new noise
+        frames = new BufferedImage[] {SyntheticFrames.bgr(size, size, 0), SyntheticFrames.bgr(size, size, 6)};
+        encoder = new JpegEncoder(0.7f, 0);
+        deltaEncoder = new DeltaEncoder(new JpegEncoder(0.7f, 0), UUID.randomUUID(), size, size);
+    }
+
+    @TearDown
+    public void tearDown() {
+        encoder.dispose();
+    }
+
+    @Benchmark
+    public int imageIO() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(frames[0], "jpg", baos);
+        return baos.size();
+    }
+
+    @Benchmark
+    public int jpegEncoder() throws IOException {
+        return encoder.encode(frames[0], false).length;
+    }
+
+    @Benchmark
+    public int deltaKeyframe() throws IOException {
+        deltaEncoder.requestKeyframe();
+        return deltaEncoder.encode(frames[0]).frameLength;
+    }
+
+    @Benchmark
+    public int delta() throws IOException {
+        frame ^= 1;
+        PlayerVideo video = deltaEncoder.encode(frames[frame]);
+        return video == null ? 0 : video.frameLength;
+    }
+}
@@ -0,0 +1,96 @@
+package com.lichcode.webcam.bench;
+
+import com.lichcode.webcam.Video.PlayerVideo;
+import com.lichcode.webcam.Video.PlayerVideoPacketCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.PacketByteBuf;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the original string UUID, byte by byte codec with the current one on 200x200 JPEG frames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PlayerVideoCodecBenchmark {
+    private PlayerVideo video;
+    private ByteBuf legacyEncoded;
+    private ByteBuf encoded;
+    private ByteBuf output;
+
+    @Setup
+    public void setup() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        video = new PlayerVideo(200, 200, uuid);
+        video.setFrame(SyntheticFrames.jpeg(200, 200, 0.9f, 0));
+
+        legacyEncoded = Unpooled.buffer();
+        LegacyCodec.encode(new PacketByteBuf(legacyEncoded), uuid.toString(), video);
+        encoded = Unpooled.buffer();
+        PlayerVideoPacketCodec.PACKET_CODEC.encode(new PacketByteBuf(encoded), video);
+        output = Unpooled.buffer(video.frameLength * 2);
+    }
+
+    @Benchmark
+    public ByteBuf encodeLegacy() {
+        output.clear();
+        LegacyCodec.encode(new PacketByteBuf(output), video.playerUUID.toString(), video);
+        return output;
+    }
+
+    @Benchmark
+    public ByteBuf encode() {
+        output.clear();
+        PlayerVideoPacketCodec.PACKET_CODEC.encode(new PacketByteBuf(output), video);
+        return output;
+    }
+
+    @Benchmark
+    public PlayerVideo decodeLegacy() {
+        legacyEncoded.readerIndex(0);
+        return LegacyCodec.decode(new PacketByteBuf(legacyEncoded));
+    }
+
+    @Benchmark
+    public int decode() {
+        encoded.readerIndex(0);
+        PlayerVideo decoded = PlayerVideoPacketCodec.PACKET_CODEC.decode(new PacketByteBuf(encoded));
+        int length = decoded.frameLength;
+        // Receivers give the frame back once it has been used
+        decoded.release();
+        return length;
+    }
+
+    // The codec as it was before frames were read in bulk
+    static class LegacyCodec {
+        static PlayerVideo decode(PacketByteBuf buf) {
+            int stringSize = buf.readInt();
+            String playerUUID = buf.readString(stringSize);
+            int width = buf.readInt();
+            int height = buf.readInt();
+            int frameBytes = buf.readInt();
+            byte[] frame = new byte[frameBytes];
+            for (int i = 0; i < frameBytes; i++) {
+                frame[i] = buf.readByte();
+            }
+
+            PlayerVideo playerVideo = new PlayerVideo(width, height, UUID.fromString(playerUUID));
+            playerVideo.setFrame(frame);
+            return playerVideo;
+        }
+
+        static void encode(PacketByteBuf buf, String playerUUID, PlayerVideo value) {
+            buf.writeInt(playerUUID.length());
+            buf.writeString(playerUUID);
+
+            buf.writeInt(value.width);
+            buf.writeInt(value.height);
+            buf.writeInt(value.frameLength);
+            buf.writeBytes(value.frame, 0, value.frameLength);
+        }
+    }
+}
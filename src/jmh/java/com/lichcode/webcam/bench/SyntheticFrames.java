@@ -0,0 +1,87 @@
+package com.lichcode.webcam.bench;
+
+import com.lichcode.webcam.video.RawFrame;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Generates webcam-like test frames so benchmarks run without a camera.
+ */
+public class SyntheticFrames {
+    public static BufferedImage image(int width, int height, int seed) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int cx = width / 2 + (seed % 20) - 10;
+        int cy = height / 2;
+        int radius = Math.min(width, height) / 3;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // Smooth background with a "face" in the middle and a bit of sensor noise
+                int r = 60 + x * 80 / width;
+                int g = 70 + y * 60 / height;
+                int b = 90;
+                int dx = x - cx;
+                int dy = y - cy;
+                if (dx * dx + dy * dy < radius * radius) {
+                    r = 210;
+                    g = 170;
+                    b = 140;
+                }
+                int noise = ((x * 73856093) ^ (y * 19349663) ^ (seed * 83492791)) & 7;
+                image.setRGB(x, y, ((r + noise) << 16) | ((g + noise) << 8) | (b + noise));
+            }
+        }
+        return image;
+    }
+
+    /**
+     * The same pixels the way the scale stage hands them to the encoder.
+     */
+    public static BufferedImage bgr(int width, int height, int seed) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = image.createGraphics();
+        graphics.drawImage(image(width, height, seed), 0, 0, null);
+        graphics.dispose();
+        return image;
+    }
+
+    /**
+     * The same pixels the way the camera hands them to the capture stage.
+     */
+    public static RawFrame raw(BufferedImage image) {
+        RawFrame frame = new RawFrame();
+        frame.resize(image.getWidth(), image.getHeight());
+        int i = 0;
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int rgb = image.getRGB(x, y);
+                frame.pixels[i++] = (byte) (rgb >> 16);
+                frame.pixels[i++] = (byte) (rgb >> 8);
+                frame.pixels[i++] = (byte) rgb;
+            }
+        }
+        return frame;
+    }
+
+    public static byte[] jpeg(int width, int height, float quality, int seed) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        JPEGImageWriteParam params = new JPEGImageWriteParam(null);
+        params.setCompressionMode(JPEGImageWriteParam.MODE_EXPLICIT);
+        params.setCompressionQuality(quality);
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(baos)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image(width, height, seed), null, null), params);
+        } finally {
+            writer.dispose();
+        }
+        return baos.toByteArray();
+    }
+}
@@ -0,0 +1,24 @@
+package com.lichcode.webcam;
+
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.network.codec.PacketCodec;
+import net.minecraft.network.packet.CustomPayload;
+import net.minecraft.util.Identifier;
+
+import static com.lichcode.webcam.WebcamMod.MOD_ID;
+
+/**
+ * Sent by the server to a streamer when someone new starts receiving their video,
+ * delta frames are useless to them until a keyframe arrives.
+ */
+public record KeyframeRequestPayload() implements CustomPayload {
+    public static final KeyframeRequestPayload INSTANCE = new KeyframeRequestPayload();
+    public static final Identifier KEYFRAME_REQUEST_PAYLOAD_ID = Identifier.of(MOD_ID, "keyframe_request");
+    public static final CustomPayload.Id<KeyframeRequestPayload> ID = new CustomPayload.Id<>(KEYFRAME_REQUEST_PAYLOAD_ID);
+    public static final PacketCodec<PacketByteBuf, KeyframeRequestPayload> CODEC = PacketCodec.unit(INSTANCE);
+
+    @Override
+    public Id<? extends CustomPayload> getId() {
+        return ID;
+    }
+}
@@ -0,0 +1,29 @@
+package com.lichcode.webcam;
+
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.network.codec.PacketCodec;
+import net.minecraft.network.codec.PacketCodecs;
+import net.minecraft.network.packet.CustomPayload;
+import net.minecraft.util.Identifier;
+
+import static com.lichcode.webcam.WebcamMod.MOD_ID;
+
+/**
+ * Sent by the server when a player joins and whenever its config changes, with the limits every stream has to
+ * stay within. The client picks its stream size, frame rate and frame size from these.
+ */
+public record StreamSettingsPayload(int maxWidth, int maxHeight, int maxFps, int maxBytesPerSecond) implements CustomPayload {
+    public static final Identifier STREAM_SETTINGS_PAYLOAD_ID = Identifier.of(MOD_ID, "stream_settings");
+    public static final CustomPayload.Id<StreamSettingsPayload> ID = new CustomPayload.Id<>(STREAM_SETTINGS_PAYLOAD_ID);
+    public static final PacketCodec<PacketByteBuf, StreamSettingsPayload> CODEC = PacketCodec.tuple(
+            PacketCodecs.VAR_INT, StreamSettingsPayload::maxWidth,
+            PacketCodecs.VAR_INT, StreamSettingsPayload::maxHeight,
+            PacketCodecs.VAR_INT, StreamSettingsPayload::maxFps,
+            PacketCodecs.VAR_INT, StreamSettingsPayload::maxBytesPerSecond,
+            StreamSettingsPayload::new);
+
+    @Override
+    public Id<? extends CustomPayload> getId() {
+        return ID;
+    }
+}
@@ -0,0 +1,52 @@
+package com.lichcode.webcam;
+
+import io.netty.handler.codec.DecoderException;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.network.codec.PacketCodec;
+import net.minecraft.network.packet.CustomPayload;
+import net.minecraft.util.Identifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static com.lichcode.webcam.WebcamMod.MOD_ID;
+
+/**
+ * Sent by clients every now and then with the players whose face they actually drew,
+ * the server only relays full rate video for those.
+ */
+public record SubscriptionPayload(List<UUID> visible) implements CustomPayload {
+    // More faces than this on screen at once is not something a client can show anyway
+    public static final int MAX_PLAYERS = 256;
+
+    public static final Identifier SUBSCRIPTION_PAYLOAD_ID = Identifier.of(MOD_ID, "subscription");
+    public static final CustomPayload.Id<SubscriptionPayload> ID = new CustomPayload.Id<>(SUBSCRIPTION_PAYLOAD_ID);
+    public static final PacketCodec<PacketByteBuf, SubscriptionPayload> CODEC = PacketCodec.of(SubscriptionPayload::write, SubscriptionPayload::read);
+
+    private static SubscriptionPayload read(PacketByteBuf buf) {
+        int count = buf.readVarInt();
+        if (count < 0 || count > MAX_PLAYERS) {
+            throw new DecoderException("Subscription for " + count + " players is not allowed");
+        }
+
+        List<UUID> visible = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            visible.add(buf.readUuid());
+        }
+        return new SubscriptionPayload(visible);
+    }
+
+    private void write(PacketByteBuf buf) {
+        int count = Math.min(visible.size(), MAX_PLAYERS);
+        buf.writeVarInt(count);
+        for (int i = 0; i < count; i++) {
+            buf.writeUuid(visible.get(i));
+        }
+    }
+
+    @Override
+    public Id<? extends CustomPayload> getId() {
+        return ID;
+    }
+}
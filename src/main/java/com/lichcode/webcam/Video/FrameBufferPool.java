@@ -0,0 +1,65 @@
+package com.lichcode.webcam.Video;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recycles the byte arrays frames are decoded into, so a busy server or client doesn't make a new array for every
+ * frame it receives. Arrays are bucketed by power of two sizes, anything that isn't returned is simply collected.
+ */
+public class FrameBufferPool {
+    private static final int MIN_BUCKET = 10;
+    private static final int MAX_BUCKET = 22;
+    private static final int BUFFERS_PER_BUCKET = 32;
+
+    @SuppressWarnings("unchecked")
+    private static final ConcurrentLinkedQueue<byte[]>[] buckets = new ConcurrentLinkedQueue[MAX_BUCKET + 1];
+    private static final AtomicInteger[] bucketSizes = new AtomicInteger[MAX_BUCKET + 1];
+
+    static {
+        for (int i = MIN_BUCKET; i <= MAX_BUCKET; i++) {
+            buckets[i] = new ConcurrentLinkedQueue<>();
+            bucketSizes[i] = new AtomicInteger();
+        }
+    }
+
+    public static byte[] acquire(int size) {
+        int bucket = bucketFor(size);
+        if (bucket > MAX_BUCKET) {
+            return new byte[size];
+        }
+
+        byte[] buffer = buckets[bucket].poll();
+        if (buffer == null) {
+            return new byte[1 << bucket];
+        }
+
+        bucketSizes[bucket].decrementAndGet();
+        return buffer;
+    }
+
+    public static void release(byte[] buffer) {
+        if (buffer == null || Integer.bitCount(buffer.length) != 1) {
+            return;
+        }
+
+        int bucket = Integer.numberOfTrailingZeros(buffer.length);
+        if (bucket < MIN_BUCKET || bucket > MAX_BUCKET) {
+            return;
+        }
+
+        if (bucketSizes[bucket].incrementAndGet() > BUFFERS_PER_BUCKET) {
+            bucketSizes[bucket].decrementAndGet();
+            return;
+        }
+        buckets[bucket].offer(buffer);
+    }
+
+    private static int bucketFor(int size) {
+        if (size <= 1 << MIN_BUCKET) {
+            return MIN_BUCKET;
+        }
+
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
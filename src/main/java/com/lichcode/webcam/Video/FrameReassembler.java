@@ -0,0 +1,87 @@
+package com.lichcode.webcam.Video;
+
+import com.lichcode.webcam.VideoFragmentPayload;
+import com.lichcode.webcam.config.ServerConfig;
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.PacketByteBuf;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Puts video frames back together from their fragments, keeping one frame in progress per player.
+ * A fragment of a newer frame throws away the frame in progress, since it would be outdated by the time it
+ * completes anyway, and fragments of older frames are ignored.
+ * Not thread safe, every side uses its own instance from its network handler thread.
+ */
+public class FrameReassembler {
+    public long framesCompleted = 0;
+    public long framesDiscarded = 0;
+
+    private final HashMap<UUID, Assembly> assemblies = new HashMap<>();
+
+    private static class Assembly {
+        final int frameId;
+        final byte[][] fragments;
+        int received = 0;
+        // Kept after completing so late duplicates don't start the frame over
+        boolean complete = false;
+
+        Assembly(int frameId, int count) {
+            this.frameId = frameId;
+            this.fragments = new byte[count][];
+        }
+    }
+
+    /**
+     * Adds a fragment sent by the given player and returns the decoded frame once all of its fragments arrived,
+     * otherwise null.
+     */
+    public PlayerVideo accept(UUID playerUUID, VideoFragmentPayload fragment) {
+        Assembly assembly = assemblies.get(playerUUID);
+        if (assembly != null && assembly.frameId != fragment.frameId()) {
+            // Ids wrap around, compare the difference instead of the values
+            if (fragment.frameId() - assembly.frameId < 0) {
+                return null;
+            }
+            framesDiscarded++;
+            assembly = null;
+        }
+        if (assembly == null) {
+            // The header and tile list of a frame fit in the two extra fragments
+            int maxFragments = ServerConfig.maxFrameBytes / VideoFragmentPayload.MAX_FRAGMENT_BYTES + 2;
+            if (fragment.count() > maxFragments) {
+                throw new IllegalArgumentException("Video frame of " + fragment.count() + " fragments is not allowed");
+            }
+            assembly = new Assembly(fragment.frameId(), fragment.count());
+            assemblies.put(playerUUID, assembly);
+        }
+        if (assembly.complete || fragment.count() != assembly.fragments.length || assembly.fragments[fragment.index()] != null) {
+            return null;
+        }
+
+        assembly.fragments[fragment.index()] = fragment.data();
+        if (++assembly.received < assembly.fragments.length) {
+            return null;
+        }
+
+        assembly.complete = true;
+        framesCompleted++;
+        try {
+            // The codec validates everything before allocating, so a bogus frame throws here
+            PacketByteBuf buf = new PacketByteBuf(Unpooled.wrappedBuffer(assembly.fragments));
+            return PlayerVideoPacketCodec.PACKET_CODEC.decode(buf);
+        } finally {
+            Arrays.fill(assembly.fragments, null);
+        }
+    }
+
+    public void remove(UUID playerUUID) {
+        assemblies.remove(playerUUID);
+    }
+
+    public void clear() {
+        assemblies.clear();
+    }
+}
@@ -1,32 +1,90 @@
 package com.lichcode.webcam.Video;
 
+
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.UUID;
 
 public class PlayerVideo {
-    public String playerUUID;
+    // A complete frame
+    public static final byte KEYFRAME = 0;
+    // Only the tiles that changed since the previous frame, packed into one JPEG
+    public static final byte DELTA = 1;
+    // Nothing changed, the viewers keep what they have. No tiles and no JPEG, just proof the stream is alive.
+    public static final byte HEARTBEAT = 2;
+    public static final int TILE_SIZE = 16;
+
+    public UUID playerUUID;
+    public byte frameType = KEYFRAME;
+    // Delta frames only: index of every tile in the frame (row by row), in the order they appear in the JPEG
+    public int[] tiles;
+    public int tileCount;
+    // The frame array can be bigger than the frame when it comes from the FrameBufferPool
     public byte[] frame;
+    public int frameLength;
+    // True when the frame array was taken from the FrameBufferPool and can be given back
+    public boolean pooled;
     public int width;
     public int height;
 
-    public PlayerVideo(int width, int height, String playerUUID) {
+    public PlayerVideo(int width, int height, UUID playerUUID) {
         this.width = width;
         this.height = height;
         this.playerUUID = playerUUID;
     }
 
+    public static int tilesX(int width) {
+        return (width + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    public static int tilesY(int height) {
+        return (height + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    public boolean isKeyframe() {
+        return frameType == KEYFRAME;
+    }
+
+    public boolean isHeartbeat() {
+        return frameType == HEARTBEAT;
+    }
+
+    public void setTiles(int[] tiles, int tileCount) {
+        this.frameType = DELTA;
+        this.tiles = tiles;
+        this.tileCount = tileCount;
+    }
+
     public void setFrame(byte[] frame) {
+        setFrame(frame, frame.length);
+    }
+
+    public void setFrame(byte[] frame, int frameLength) {
         this.frame = frame;
+        this.frameLength = frameLength;
+    }
+
+    /**
+     * Drops the frame, giving its array back to the pool if it came from there.
+     * Only call this once nothing reads the frame anymore.
+     */
+    public void release() {
+        if (this.pooled) {
+            FrameBufferPool.release(this.frame);
+        }
+        this.pooled = false;
+        this.frame = null;
+        this.frameLength = 0;
     }
 
 
     public ByteBuffer asByteBuffer() {
         BufferedImage image = null;
         try {
-            image = ImageIO.read(new ByteArrayInputStream(this.frame));
+            image = ImageIO.read(new ByteArrayInputStream(this.frame, 0, this.frameLength));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -1,43 +1,104 @@
 package com.lichcode.webcam.Video;
 
 import com.lichcode.webcam.WebcamMod;
+import com.lichcode.webcam.config.ServerConfig;
+import io.netty.handler.codec.DecoderException;
 import net.minecraft.network.PacketByteBuf;
 import net.minecraft.network.codec.PacketCodec;
 
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class PlayerVideoPacketCodec implements PacketCodec<PacketByteBuf, PlayerVideo> {
     public static final PlayerVideoPacketCodec PACKET_CODEC;
 
+    // Any client can send broken frames, at most one warning this often
+    private static final long WARNING_INTERVAL_NANOS = 10_000_000_000L;
+    private static final AtomicLong lastWarning = new AtomicLong(System.nanoTime() - WARNING_INTERVAL_NANOS);
+    private static final AtomicLong suppressedWarnings = new AtomicLong();
+
     @Override
     public PlayerVideo decode(PacketByteBuf buf) {
         try {
-            int stringSize = buf.readInt();
-            String playerUUID = buf.readString(stringSize);
+            UUID playerUUID = buf.readUuid();
+            byte frameType = buf.readByte();
             int width = buf.readInt();
             int height = buf.readInt();
+            if (width <= 0 || height <= 0 || width > ServerConfig.maxDimension || height > ServerConfig.maxDimension) {
+                throw new DecoderException("Video frame size " + width + "x" + height + " is not allowed");
+            }
+
+            int[] tiles = null;
+            int tileCount = 0;
+            if (frameType == PlayerVideo.DELTA) {
+                int totalTiles = PlayerVideo.tilesX(width) * PlayerVideo.tilesY(height);
+                tileCount = buf.readVarInt();
+                if (tileCount < 0 || tileCount > totalTiles) {
+                    throw new DecoderException("Delta frame has " + tileCount + " tiles but the frame only has " + totalTiles);
+                }
+                tiles = new int[tileCount];
+                for (int i = 0; i < tileCount; i++) {
+                    tiles[i] = buf.readVarInt();
+                    if (tiles[i] < 0 || tiles[i] >= totalTiles) {
+                        throw new DecoderException("Delta frame tile " + tiles[i] + " is outside the frame");
+                    }
+                }
+            } else if (frameType == PlayerVideo.HEARTBEAT) {
+                PlayerVideo heartbeat = new PlayerVideo(width, height, playerUUID);
+                heartbeat.frameType = PlayerVideo.HEARTBEAT;
+                return heartbeat;
+            } else if (frameType != PlayerVideo.KEYFRAME) {
+                throw new DecoderException("Unknown video frame type " + frameType);
+            }
+
             int frameBytes = buf.readInt();
-            byte[] frame = new byte[frameBytes];
-            for (int i = 0; i < frameBytes; i++) {
-                frame[i] = buf.readByte();
+            if (frameBytes < 0 || frameBytes > ServerConfig.maxFrameBytes) {
+                throw new DecoderException("Video frame of " + frameBytes + " bytes is over the limit of " + ServerConfig.maxFrameBytes);
+            }
+            if (frameBytes > buf.readableBytes()) {
+                throw new DecoderException("Video frame claims " + frameBytes + " bytes but only " + buf.readableBytes() + " were sent");
             }
 
+            byte[] frame = FrameBufferPool.acquire(frameBytes);
+            buf.readBytes(frame, 0, frameBytes);
+
             PlayerVideo playerVideo = new PlayerVideo(width, height, playerUUID);
-            playerVideo.setFrame(frame);
+            playerVideo.setFrame(frame, frameBytes);
+            playerVideo.pooled = true;
+            if (tiles != null) {
+                playerVideo.setTiles(tiles, tileCount);
+            }
             return playerVideo;
-        } catch (Exception e) {
-            WebcamMod.LOGGER.error("ERROR DECODING", e);
+        } catch (RuntimeException e) {
+            long last = lastWarning.get();
+            long now = System.nanoTime();
+            if (now - last >= WARNING_INTERVAL_NANOS && lastWarning.compareAndSet(last, now)) {
+                WebcamMod.LOGGER.warn("Could not decode video frame: {} ({} more since the last warning)", e.getMessage(), suppressedWarnings.getAndSet(0));
+            } else {
+                suppressedWarnings.incrementAndGet();
+            }
             throw e;
         }
     }
 
     @Override
     public void encode(PacketByteBuf buf, PlayerVideo value) {
-        buf.writeInt(value.playerUUID.length());
-        buf.writeString(value.playerUUID);
+        buf.writeUuid(value.playerUUID);
+        buf.writeByte(value.frameType);
 
         buf.writeInt(value.width);
         buf.writeInt(value.height);
-        buf.writeInt(value.frame.length);
-        buf.writeBytes(value.frame);
+        if (value.frameType == PlayerVideo.HEARTBEAT) {
+            return;
+        }
+        if (value.frameType == PlayerVideo.DELTA) {
+            buf.writeVarInt(value.tileCount);
+            for (int i = 0; i < value.tileCount; i++) {
+                buf.writeVarInt(value.tiles[i]);
+            }
+        }
+        buf.writeInt(value.frameLength);
+        buf.writeBytes(value.frame, 0, value.frameLength);
     }
 
     static {
@@ -0,0 +1,41 @@
+package com.lichcode.webcam.Video;
+
+/**
+ * Draws moving test frames for the synthetic camera and the load test, so neither needs a real camera.
+ * A face sized block wanders over a gradient and a bar at the bottom counts frames, like a camera the
+ * changes are mostly in the middle of the picture.
+ */
+public class TestPattern {
+    /**
+     * Fills rgb with frame number frame, 3 bytes per pixel in RGB order.
+     */
+    public static void fill(byte[] rgb, int width, int height, long frame) {
+        int size = Math.min(width, height) / 3;
+        double angle = frame * 0.05;
+        int blockX = (int) ((width - size) / 2 * (1 + Math.cos(angle)));
+        int blockY = (int) ((height - size) / 2 * (1 + Math.sin(angle * 1.3)));
+        int barHeight = Math.max(1, height / 20);
+        int barWidth = (int) (frame % 64) * width / 64;
+
+        int i = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = 40 + x * 120 / width;
+                int g = 60 + y * 100 / height;
+                int b = 110;
+                if (x >= blockX && x < blockX + size && y >= blockY && y < blockY + size) {
+                    r = 215;
+                    g = 175;
+                    b = 145;
+                } else if (y >= height - barHeight && x < barWidth) {
+                    r = 240;
+                    g = 240;
+                    b = 240;
+                }
+                rgb[i++] = (byte) r;
+                rgb[i++] = (byte) g;
+                rgb[i++] = (byte) b;
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.lichcode.webcam;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.DecoderException;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.network.codec.PacketCodec;
+import net.minecraft.network.packet.CustomPayload;
+import net.minecraft.util.Identifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static com.lichcode.webcam.WebcamMod.MOD_ID;
+
+/**
+ * A piece of a serialized video frame. Frames are split so no single packet gets big enough to hold up
+ * everything queued behind it, or to hit the custom payload size limit. See {@link com.lichcode.webcam.Video.FrameReassembler}.
+ */
+public record VideoFragmentPayload(UUID playerUUID, int frameId, int index, int count, byte[] data) implements CustomPayload {
+    // Well below the 32 KiB limit on custom payloads sent by clients
+    public static final int MAX_FRAGMENT_BYTES = 16 * 1024;
+    public static final int MAX_FRAGMENTS = 256;
+
+    public static final Identifier VIDEO_FRAGMENT_PAYLOAD_ID = Identifier.of(MOD_ID, "video_fragment");
+    public static final CustomPayload.Id<VideoFragmentPayload> ID = new CustomPayload.Id<>(VIDEO_FRAGMENT_PAYLOAD_ID);
+    public static final PacketCodec<PacketByteBuf, VideoFragmentPayload> CODEC = PacketCodec.of(VideoFragmentPayload::write, VideoFragmentPayload::read);
+
+    /**
+     * Splits a serialized frame into fragments.
+     */
+    public static List<VideoFragmentPayload> split(UUID playerUUID, int frameId, ByteBuf frame) {
+        int length = frame.readableBytes();
+        int count = Math.max(1, (length + MAX_FRAGMENT_BYTES - 1) / MAX_FRAGMENT_BYTES);
+        if (count > MAX_FRAGMENTS) {
+            throw new IllegalArgumentException("Video frame of " + length + " bytes is too big");
+        }
+
+        List<VideoFragmentPayload> fragments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int offset = i * MAX_FRAGMENT_BYTES;
+            byte[] data = new byte[Math.min(MAX_FRAGMENT_BYTES, length - offset)];
+            frame.getBytes(frame.readerIndex() + offset, data);
+            fragments.add(new VideoFragmentPayload(playerUUID, frameId, i, count, data));
+        }
+        return fragments;
+    }
+
+    private static VideoFragmentPayload read(PacketByteBuf buf) {
+        UUID playerUUID = buf.readUuid();
+        int frameId = buf.readVarInt();
+        int index = buf.readVarInt();
+        int count = buf.readVarInt();
+        if (count <= 0 || count > MAX_FRAGMENTS || index < 0 || index >= count) {
+            throw new DecoderException("Video fragment " + index + " of " + count + " is not allowed");
+        }
+
+        int length = buf.readVarInt();
+        if (length < 0 || length > MAX_FRAGMENT_BYTES || length > buf.readableBytes()) {
+            throw new DecoderException("Video fragment of " + length + " bytes is not allowed");
+        }
+        byte[] data = new byte[length];
+        buf.readBytes(data);
+        return new VideoFragmentPayload(playerUUID, frameId, index, count, data);
+    }
+
+    private void write(PacketByteBuf buf) {
+        buf.writeUuid(playerUUID);
+        buf.writeVarInt(frameId);
+        buf.writeVarInt(index);
+        buf.writeVarInt(count);
+        buf.writeVarInt(data.length);
+        buf.writeBytes(data);
+    }
+
+    @Override
+    public Id<? extends CustomPayload> getId() {
+        return ID;
+    }
+}
@@ -1,14 +1,28 @@
 package com.lichcode.webcam;
 
+import com.lichcode.webcam.Video.FrameReassembler;
+import com.lichcode.webcam.Video.PlayerVideo;
+import com.lichcode.webcam.command.WebcamCommand;
+import com.lichcode.webcam.config.ServerConfig;
+import com.lichcode.webcam.relay.AudienceIndex;
+import com.lichcode.webcam.relay.LoadTest;
+import com.lichcode.webcam.relay.Subscriptions;
+import com.lichcode.webcam.relay.VideoRelay;
 import net.fabricmc.api.ModInitializer;
+import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
 
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
 import net.fabricmc.fabric.api.networking.v1.PayloadTypeRegistry;
-import net.fabricmc.fabric.api.networking.v1.PlayerLookup;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
 import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
 import net.minecraft.server.network.ServerPlayerEntity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
+import java.util.UUID;
+
 public class WebcamMod implements ModInitializer {
 	public static final String MOD_ID = "webcam";
 
@@ -17,6 +31,12 @@ public class WebcamMod implements ModInitializer {
 	// That way, it's clear which mod wrote info, warnings, and errors.
 	public static final Logger LOGGER = LoggerFactory.getLogger(MOD_ID);
 
+	// Only used on the server thread
+	private static final FrameReassembler reassembler = new FrameReassembler();
+	// Any client can send broken frames, at most one warning this often
+	private static final long INVALID_FRAME_WARNING_INTERVAL_NANOS = 10_000_000_000L;
+	private static long lastInvalidFrameWarning = System.nanoTime() - INVALID_FRAME_WARNING_INTERVAL_NANOS;
+
 	@Override
 	public void onInitialize() {
 		// This code runs as soon as Minecraft is in a mod-load-ready state.
@@ -24,22 +44,80 @@ public class WebcamMod implements ModInitializer {
 		// Proceed with mild caution.
 
 		LOGGER.info("Hello Fabric world!");
-		PayloadTypeRegistry.playC2S().register(VideoFramePayload.ID, VideoFramePayload.CODEC);
-		PayloadTypeRegistry.playS2C().register(VideoFramePayload.ID, VideoFramePayload.CODEC);
+		PayloadTypeRegistry.playC2S().register(VideoFragmentPayload.ID, VideoFragmentPayload.CODEC);
+		PayloadTypeRegistry.playS2C().register(VideoFragmentPayload.ID, VideoFragmentPayload.CODEC);
+		PayloadTypeRegistry.playS2C().register(KeyframeRequestPayload.ID, KeyframeRequestPayload.CODEC);
+		PayloadTypeRegistry.playC2S().register(SubscriptionPayload.ID, SubscriptionPayload.CODEC);
+		PayloadTypeRegistry.playS2C().register(StreamSettingsPayload.ID, StreamSettingsPayload.CODEC);
+
+		CommandRegistrationCallback.EVENT.register((dispatcher, registryAccess, environment) -> WebcamCommand.register(dispatcher));
+
+		ServerLifecycleEvents.SERVER_STARTED.register(server -> {
+			ServerConfig.load();
+			VideoRelay.start();
+		});
+		ServerLifecycleEvents.SERVER_STOPPING.register(server -> {
+			LoadTest.stop();
+			VideoRelay.stop();
+			Subscriptions.clear();
+			AudienceIndex.clear();
+			reassembler.clear();
+		});
+		ServerTickEvents.END_SERVER_TICK.register(AudienceIndex::tick);
+		ServerTickEvents.END_SERVER_TICK.register(LoadTest::tick);
+		// Tell the client what it may stream before it starts
+		ServerPlayConnectionEvents.JOIN.register((handler, sender, server) -> {
+			if (ServerPlayNetworking.canSend(handler.player, StreamSettingsPayload.ID)) {
+				sender.sendPacket(ServerConfig.streamSettings());
+			}
+		});
+		ServerPlayConnectionEvents.DISCONNECT.register((handler, server) -> playerLeft(handler.player.getUuid()));
 
-		ServerPlayNetworking.registerGlobalReceiver(VideoFramePayload.ID, (payload, context) -> {
-			ServerPlayerEntity sender = context.player();
+		ServerPlayNetworking.registerGlobalReceiver(SubscriptionPayload.ID, (payload, context) -> {
+			Subscriptions.update(context.player(), payload.visible());
+		});
 
-			// Only send the video to players within 100 blocks
-			for (ServerPlayerEntity player : PlayerLookup.around(sender.getServerWorld(), sender.getPos(), 100)) {
-				// Do not send the video to the sender, they just sent it to the server duh.
-				if (player.getUuid() == sender.getUuid()) {
-					continue;
-				}
+		ServerPlayNetworking.registerGlobalReceiver(VideoFragmentPayload.ID, (payload, context) -> receiveFragment(context.player(), payload));
+	}
 
-				// Send image to other players
-				ServerPlayNetworking.send(player, payload);
+	/**
+	 * Handles a fragment of a video frame sent by a player, on the server thread. Also used by {@link LoadTest}.
+	 */
+	public static void receiveFragment(ServerPlayerEntity sender, VideoFragmentPayload payload) {
+		PlayerVideo video;
+		try {
+			// Fragments are keyed by who sent them, never trust the client with who the frame belongs to
+			video = reassembler.accept(sender.getUuid(), payload);
+		} catch (RuntimeException e) {
+			long now = System.nanoTime();
+			if (now - lastInvalidFrameWarning >= INVALID_FRAME_WARNING_INTERVAL_NANOS) {
+				lastInvalidFrameWarning = now;
+				LOGGER.warn("Dropping invalid video frame from {}: {}", sender.getName().getString(), e.getMessage());
 			}
-        });
+			reassembler.remove(sender.getUuid());
+			return;
+		}
+		if (video == null) {
+			return;
+		}
+		video.playerUUID = sender.getUuid();
+		// Left over from before the limits changed, or a client ignoring them
+		if (video.width > ServerConfig.maxWidth || video.height > ServerConfig.maxHeight) {
+			video.release();
+			return;
+		}
+
+		// The players in range that are looking at the sender, worked out once per tick
+		List<VideoRelay.Recipient> recipients = AudienceIndex.audience(sender);
+
+		// Encoding and sending happens on the relay thread
+		VideoRelay.submit(sender, video, recipients);
+	}
+
+	public static void playerLeft(UUID playerUUID) {
+		Subscriptions.remove(playerUUID);
+		AudienceIndex.remove(playerUUID);
+		reassembler.remove(playerUUID);
+		VideoRelay.remove(playerUUID);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,102 @@
+package com.lichcode.webcam.command;
+
+import com.lichcode.webcam.StreamSettingsPayload;
+import com.lichcode.webcam.config.ServerConfig;
+import com.lichcode.webcam.relay.LoadTest;
+import com.lichcode.webcam.relay.VideoRelay;
+import com.lichcode.webcam.relay.ViewerConnection;
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.IntegerArgumentType;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.command.CommandManager;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.text.Text;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The /webcam server command.
+ */
+public class WebcamCommand {
+    public static void register(CommandDispatcher<ServerCommandSource> dispatcher) {
+        dispatcher.register(CommandManager.literal("webcam")
+                .requires(source -> source.hasPermissionLevel(3))
+                .then(CommandManager.literal("reload").executes(context -> {
+                    ServerConfig.load();
+                    sendStreamSettings(context.getSource().getServer());
+                    context.getSource().sendFeedback(() -> Text.literal("Reloaded webcam config"), true);
+                    return 1;
+                }))
+                .then(CommandManager.literal("stats").executes(context -> stats(context.getSource())))
+                .then(CommandManager.literal("loadtest")
+                        .then(CommandManager.literal("stop").executes(context -> {
+                            LoadTest.stop();
+                            return 1;
+                        }))
+                        .then(CommandManager.argument("streamers", IntegerArgumentType.integer(1, 500))
+                                .executes(context -> startLoadTest(context.getSource(), IntegerArgumentType.getInteger(context, "streamers"), 30))
+                                .then(CommandManager.argument("seconds", IntegerArgumentType.integer(1, 3600))
+                                        .executes(context -> startLoadTest(context.getSource(),
+                                                IntegerArgumentType.getInteger(context, "streamers"),
+                                                IntegerArgumentType.getInteger(context, "seconds")))))));
+    }
+
+    private static int stats(ServerCommandSource source) {
+        List<String> lines = new ArrayList<>();
+        lines.add(VideoRelay.relayTimer.toString());
+        int backedUp = 0;
+        for (ViewerConnection connection : VideoRelay.connections()) {
+            if (connection.isBackedUp()) {
+                backedUp++;
+            }
+        }
+        lines.add(String.format("Viewer connections: %d, %d backed up", VideoRelay.connections().size(), backedUp));
+        for (ViewerConnection connection : VideoRelay.connections()) {
+            lines.add(String.format("%s: %d frames sent, %d dropped, %.1f KiB queued", connection.player.getName().getString(),
+                    connection.framesSent, connection.framesDropped, connection.queuedBytes.get() / 1024.0));
+        }
+
+        for (Map.Entry<UUID, VideoRelay.StreamerStats> entry : VideoRelay.streamers().entrySet()) {
+            VideoRelay.StreamerStats stats = entry.getValue();
+            ServerPlayerEntity player = source.getServer().getPlayerManager().getPlayer(entry.getKey());
+            String name = player != null ? player.getName().getString() : entry.getKey().toString();
+            lines.add(String.format("%s: %.1f fps, %.1f KiB/s in, %.1f KiB/s out to %d viewers", name,
+                    stats.received.eventsPerSecond(), stats.received.bytesPerSecond() / 1024,
+                    stats.sent.bytesPerSecond() / 1024, stats.viewers));
+        }
+
+        for (String line : lines) {
+            source.sendFeedback(() -> Text.literal(line), false);
+        }
+        return 1;
+    }
+
+    private static int startLoadTest(ServerCommandSource source, int streamers, int seconds) {
+        try {
+            LoadTest.start(source, streamers, seconds);
+        } catch (IOException e) {
+            source.sendError(Text.literal("Could not encode the test frames: " + e.getMessage()));
+            return 0;
+        }
+        source.sendFeedback(() -> Text.literal("Started load test with " + streamers + " streamers for " + seconds + "s"), true);
+        return 1;
+    }
+
+    /**
+     * Tells every player with the mod about the current stream limits, their streams adjust to them.
+     */
+    public static void sendStreamSettings(MinecraftServer server) {
+        StreamSettingsPayload settings = ServerConfig.streamSettings();
+        for (ServerPlayerEntity player : server.getPlayerManager().getPlayerList()) {
+            if (ServerPlayNetworking.canSend(player, StreamSettingsPayload.ID)) {
+                ServerPlayNetworking.send(player, settings);
+            }
+        }
+    }
+}
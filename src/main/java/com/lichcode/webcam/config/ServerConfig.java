@@ -0,0 +1,160 @@
+package com.lichcode.webcam.config;
+
+import com.lichcode.webcam.StreamSettingsPayload;
+import com.lichcode.webcam.VideoFragmentPayload;
+import com.lichcode.webcam.WebcamMod;
+import net.fabricmc.loader.api.FabricLoader;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Server side settings, read from config/webcam-server.properties when the server starts.
+ * Missing settings keep their defaults and the file is written back so every setting shows up in it.
+ */
+public class ServerConfig {
+    private static final String FILE_NAME = "webcam-server.properties";
+
+    // Checked before anything is allocated, so a client can't make everyone else allocate huge frames.
+    // Clients on a remote server check what the server sends them against the defaults.
+    public static int maxFrameBytes = 512 * 1024;
+    public static int maxDimension = 1024;
+
+    // Limits sent to every client, streams that don't stay within them are dropped
+    public static int maxWidth = 480;
+    public static int maxHeight = 480;
+    public static int maxFps = 15;
+    public static int maxBytesPerSecond = 256 * 1024;
+
+    // Players further away than this never get the video
+    public static int radius = 100;
+    // Players within tierDistances[i] blocks get every tierDivisors[i]th frame. Above 1 that means no deltas,
+    // only the streamer's regular keyframes, at most one every tierDivisors[i] frames.
+    public static int[] tierDistances = {16, 48};
+    public static int[] tierDivisors = {1, 3};
+    // Frame divisor for everyone beyond the last tier
+    public static int farDivisor = 10;
+    // Streams a player looked at recently keep coming for keepaliveSeconds, as a keyframe every keepaliveDivisor
+    // frames and heartbeats. At least 2, so keepalive viewers never get deltas.
+    public static int keepaliveSeconds = 10;
+    public static int keepaliveDivisor = 20;
+    // Video still waiting to be written to a player before their frames are held back
+    public static int maxQueuedBytes = 256 * 1024;
+
+    public static void load() {
+        Path path = FabricLoader.getInstance().getConfigDir().resolve(FILE_NAME);
+        Properties properties = new Properties();
+        if (Files.exists(path)) {
+            try (Reader reader = Files.newBufferedReader(path)) {
+                properties.load(reader);
+            } catch (IOException e) {
+                WebcamMod.LOGGER.error("Could not read {}, using defaults", path, e);
+            }
+        }
+
+        // A frame can't be split into more fragments than that
+        maxFrameBytes = Math.min((VideoFragmentPayload.MAX_FRAGMENTS - 2) * VideoFragmentPayload.MAX_FRAGMENT_BYTES,
+                readInt(properties, "maxFrameBytes", maxFrameBytes, 16 * 1024));
+        maxDimension = readInt(properties, "maxDimension", maxDimension, 16);
+        maxWidth = Math.min(maxDimension, readInt(properties, "maxWidth", maxWidth, 16));
+        maxHeight = Math.min(maxDimension, readInt(properties, "maxHeight", maxHeight, 16));
+        maxFps = readInt(properties, "maxFps", maxFps, 1);
+        maxBytesPerSecond = readInt(properties, "maxBytesPerSecond", maxBytesPerSecond, 1024);
+        radius = readInt(properties, "radius", radius, 1);
+        farDivisor = readInt(properties, "farDivisor", farDivisor, 1);
+        keepaliveSeconds = readInt(properties, "keepaliveSeconds", keepaliveSeconds, 0);
+        keepaliveDivisor = readInt(properties, "keepaliveDivisor", keepaliveDivisor, 2);
+        maxQueuedBytes = readInt(properties, "maxQueuedBytes", maxQueuedBytes, 0);
+        readTiers(properties.getProperty("tiers"));
+
+        properties.setProperty("maxFrameBytes", Integer.toString(maxFrameBytes));
+        properties.setProperty("maxDimension", Integer.toString(maxDimension));
+        properties.setProperty("maxWidth", Integer.toString(maxWidth));
+        properties.setProperty("maxHeight", Integer.toString(maxHeight));
+        properties.setProperty("maxFps", Integer.toString(maxFps));
+        properties.setProperty("maxBytesPerSecond", Integer.toString(maxBytesPerSecond));
+        properties.setProperty("radius", Integer.toString(radius));
+        properties.setProperty("farDivisor", Integer.toString(farDivisor));
+        properties.setProperty("keepaliveSeconds", Integer.toString(keepaliveSeconds));
+        properties.setProperty("keepaliveDivisor", Integer.toString(keepaliveDivisor));
+        properties.setProperty("maxQueuedBytes", Integer.toString(maxQueuedBytes));
+        properties.setProperty("tiers", tiersToString());
+        try (Writer writer = Files.newBufferedWriter(path)) {
+            properties.store(writer, "Webcam server settings. tiers is a list of distance:divisor, players within "
+                    + "the distance get every divisor'th frame");
+        } catch (IOException e) {
+            WebcamMod.LOGGER.error("Could not write {}", path, e);
+        }
+    }
+
+    public static StreamSettingsPayload streamSettings() {
+        return new StreamSettingsPayload(maxWidth, maxHeight, maxFps, maxBytesPerSecond);
+    }
+
+    /**
+     * How many frames a player this far away from the streamer gets, 1 is every frame, 3 is every third.
+     */
+    public static int frameDivisor(double distance) {
+        for (int i = 0; i < tierDistances.length; i++) {
+            if (distance <= tierDistances[i]) {
+                return tierDivisors[i];
+            }
+        }
+        return farDivisor;
+    }
+
+    private static int readInt(Properties properties, String key, int defaultValue, int min) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Math.max(min, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            WebcamMod.LOGGER.warn("Invalid {} '{}' in {}, using {}", key, value, FILE_NAME, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static void readTiers(String value) {
+        if (value == null || value.isBlank()) {
+            return;
+        }
+
+        String[] entries = value.split(",");
+        int[] distances = new int[entries.length];
+        int[] divisors = new int[entries.length];
+        try {
+            for (int i = 0; i < entries.length; i++) {
+                String[] parts = entries[i].trim().split(":");
+                distances[i] = Integer.parseInt(parts[0].trim());
+                divisors[i] = Math.max(1, Integer.parseInt(parts[1].trim()));
+                if (i > 0 && distances[i] <= distances[i - 1]) {
+                    throw new IllegalArgumentException("distances must go up");
+                }
+            }
+        } catch (RuntimeException e) {
+            WebcamMod.LOGGER.warn("Invalid tiers '{}' in {}, using the defaults", value, FILE_NAME);
+            return;
+        }
+
+        tierDistances = distances;
+        tierDivisors = divisors;
+    }
+
+    private static String tiersToString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < tierDistances.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(tierDistances[i]).append(':').append(tierDivisors[i]);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,16 @@
+package com.lichcode.webcam.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A frame that one stage of the video path had to throw away.
+ */
+@Name("webcam.FrameDropped")
+@Label("Webcam Frame Dropped")
+@Category("Webcam")
+public class FrameDroppedEvent extends jdk.jfr.Event {
+    @Label("Stage")
+    public String stage;
+}
@@ -0,0 +1,73 @@
+package com.lichcode.webcam.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in buckets that grow by a quarter each, so percentiles are at most a quarter too high.
+ * Recording is lock free and can happen from any thread.
+ */
+public class LatencyHistogram {
+    private static final double GROWTH = 1.25;
+    // The first bucket holds everything up to a microsecond, the last one everything above about a minute
+    private static final long MIN_NANOS = 1_000;
+    private static final int BUCKETS = 82;
+    private static final double LOG_GROWTH = Math.log(GROWTH);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos) {
+        counts.incrementAndGet(bucket(nanos));
+    }
+
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * The latency below which the given share of the recorded latencies are, percentile 0.99 is the p99.
+     * Returns 0 when nothing was recorded.
+     */
+    public double percentileMillis(double percentile) {
+        long total = count();
+        if (total == 0) {
+            return 0;
+        }
+
+        long wanted = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= wanted) {
+                return upperBound(i) / 1_000_000.0;
+            }
+        }
+        return upperBound(BUCKETS - 1) / 1_000_000.0;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    private static int bucket(long nanos) {
+        if (nanos <= MIN_NANOS) {
+            return 0;
+        }
+        int bucket = (int) Math.ceil(Math.log((double) nanos / MIN_NANOS) / LOG_GROWTH);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    private static double upperBound(int bucket) {
+        return MIN_NANOS * Math.pow(GROWTH, bucket);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("p50 %.1fms p99 %.1fms", percentileMillis(0.5), percentileMillis(0.99));
+    }
+}
@@ -0,0 +1,64 @@
+package com.lichcode.webcam.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts events and bytes and works out their rate over the last few seconds.
+ * Can be used from any thread.
+ */
+public class RateMeter {
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    // Counts at the start of the current window, guarded by this
+    private long windowStart = System.nanoTime();
+    private long windowEvents = 0;
+    private long windowBytes = 0;
+    private volatile double eventsPerSecond = 0;
+    private volatile double bytesPerSecond = 0;
+
+    public void add(long events, long bytes) {
+        this.events.addAndGet(events);
+        this.bytes.addAndGet(bytes);
+        update();
+    }
+
+    public long events() {
+        return events.get();
+    }
+
+    public long bytes() {
+        return bytes.get();
+    }
+
+    public double eventsPerSecond() {
+        update();
+        return eventsPerSecond;
+    }
+
+    public double bytesPerSecond() {
+        update();
+        return bytesPerSecond;
+    }
+
+    private void update() {
+        long now = System.nanoTime();
+        synchronized (this) {
+            long elapsed = now - windowStart;
+            if (elapsed < WINDOW_NANOS) {
+                return;
+            }
+
+            double seconds = elapsed / 1_000_000_000.0;
+            long currentEvents = events.get();
+            long currentBytes = bytes.get();
+            eventsPerSecond = (currentEvents - windowEvents) / seconds;
+            bytesPerSecond = (currentBytes - windowBytes) / seconds;
+            windowStart = now;
+            windowEvents = currentEvents;
+            windowBytes = currentBytes;
+        }
+    }
+}
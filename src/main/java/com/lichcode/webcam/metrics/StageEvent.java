@@ -0,0 +1,26 @@
+package com.lichcode.webcam.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A frame going through one stage of the video path, shows up in JFR recordings next to GC and tick times.
+ */
+@Name("webcam.Stage")
+@Label("Webcam Stage")
+@Category("Webcam")
+public class StageEvent extends jdk.jfr.Event {
+    @Label("Stage")
+    public String stage;
+
+    @Label("Time")
+    @Timespan(Timespan.NANOSECONDS)
+    public long time;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+}
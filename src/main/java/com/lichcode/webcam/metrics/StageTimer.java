@@ -0,0 +1,142 @@
+package com.lichcode.webcam.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures one stage of the video path: how long frames take, how many and how many bytes go through and how
+ * many are dropped. Rates and percentiles are over the last few seconds. Every frame is also a JFR event.
+ * Can be used from any thread.
+ */
+public class StageTimer {
+    private static final double SMOOTHING = 0.1;
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    public final String name;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final RateMeter rate = new RateMeter();
+    private volatile long lastNanos = 0;
+    private volatile double averageNanos = 0;
+    // Percentiles come from the last whole window, so they don't jump around right after it starts
+    private volatile LatencyHistogram current = new LatencyHistogram();
+    private volatile LatencyHistogram previous = null;
+    private long windowStart = System.nanoTime();
+
+    public StageTimer(String name) {
+        this.name = name;
+    }
+
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time passed since start was called, and returns it.
+     */
+    public long stop(long start) {
+        long nanos = System.nanoTime() - start;
+        record(nanos);
+        return nanos;
+    }
+
+    /**
+     * Records the time passed since start was called for a frame of the given size.
+     */
+    public long stop(long start, long bytes) {
+        long nanos = System.nanoTime() - start;
+        record(nanos, bytes);
+        return nanos;
+    }
+
+    public void record(long nanos) {
+        record(nanos, 0);
+    }
+
+    public void record(long nanos, long bytes) {
+        lastNanos = nanos;
+        averageNanos = count.getAndIncrement() == 0 ? nanos : averageNanos + (nanos - averageNanos) * SMOOTHING;
+        rate.add(1, bytes);
+        roll();
+        current.record(nanos);
+
+        StageEvent event = new StageEvent();
+        if (event.shouldCommit()) {
+            event.stage = name;
+            event.time = nanos;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * Counts bytes that went through the stage without timing a frame.
+     */
+    public void addBytes(long bytes) {
+        rate.add(0, bytes);
+    }
+
+    public void drop() {
+        drop(1);
+    }
+
+    public void drop(long frames) {
+        dropped.addAndGet(frames);
+        FrameDroppedEvent event = new FrameDroppedEvent();
+        if (event.shouldCommit()) {
+            event.stage = name;
+            event.commit();
+        }
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long dropped() {
+        return dropped.get();
+    }
+
+    public double framesPerSecond() {
+        return rate.eventsPerSecond();
+    }
+
+    public double bytesPerSecond() {
+        return rate.bytesPerSecond();
+    }
+
+    public double lastMillis() {
+        return lastNanos / 1_000_000.0;
+    }
+
+    public double averageMillis() {
+        return averageNanos / 1_000_000.0;
+    }
+
+    /**
+     * The time below which the given share of the frames took, 0.99 is the p99.
+     */
+    public double percentileMillis(double percentile) {
+        roll();
+        LatencyHistogram histogram = previous;
+        return (histogram != null ? histogram : current).percentileMillis(percentile);
+    }
+
+    private void roll() {
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (now - windowStart < WINDOW_NANOS) {
+                return;
+            }
+            previous = current;
+            current = new LatencyHistogram();
+            windowStart = now;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %.1f/s %.1f KiB/s p50 %.1fms p99 %.1fms, %d dropped", name, framesPerSecond(),
+                bytesPerSecond() / 1024, percentileMillis(0.5), percentileMillis(0.99), dropped());
+    }
+}
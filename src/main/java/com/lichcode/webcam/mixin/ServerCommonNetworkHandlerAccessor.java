@@ -0,0 +1,12 @@
+package com.lichcode.webcam.mixin;
+
+import net.minecraft.network.ClientConnection;
+import net.minecraft.server.network.ServerCommonNetworkHandler;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Accessor;
+
+@Mixin(ServerCommonNetworkHandler.class)
+public interface ServerCommonNetworkHandlerAccessor {
+    @Accessor("connection")
+    ClientConnection webcam$getConnection();
+}
@@ -0,0 +1,137 @@
+package com.lichcode.webcam.relay;
+
+import com.lichcode.webcam.VideoFragmentPayload;
+import com.lichcode.webcam.config.ServerConfig;
+import net.fabricmc.fabric.api.entity.FakePlayer;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.ChunkPos;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Who gets each streamer's video, worked out once per tick instead of for every frame.
+ * Players are bucketed by chunk, so finding the players around a streamer only looks at the chunks in range.
+ * Only streamers that sent a frame in the last few seconds get an audience.
+ * Only used on the server thread.
+ */
+public class AudienceIndex {
+    private static final long STREAMER_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    // When each streamer last sent a frame
+    private static final HashMap<UUID, Long> streamers = new HashMap<>();
+    private static final HashMap<ServerWorld, HashMap<Long, List<ServerPlayerEntity>>> grids = new HashMap<>();
+    private static HashMap<UUID, List<VideoRelay.Recipient>> audiences = new HashMap<>();
+
+    public static void tick(MinecraftServer server) {
+        long now = System.nanoTime();
+        streamers.values().removeIf((time) -> now - time > STREAMER_TIMEOUT_NANOS);
+        if (streamers.isEmpty()) {
+            grids.clear();
+            audiences.clear();
+            return;
+        }
+
+        rebuildGrids(server);
+
+        HashMap<UUID, List<VideoRelay.Recipient>> rebuilt = new HashMap<>();
+        for (UUID streamerUUID : streamers.keySet()) {
+            ServerPlayerEntity streamer = server.getPlayerManager().getPlayer(streamerUUID);
+            if (streamer == null) {
+                streamer = LoadTest.streamer(streamerUUID);
+            }
+            if (streamer != null) {
+                rebuilt.put(streamerUUID, compute(streamer));
+            }
+        }
+        audiences = rebuilt;
+    }
+
+    /**
+     * The players that should get a frame from this streamer right now.
+     */
+    public static List<VideoRelay.Recipient> audience(ServerPlayerEntity streamer) {
+        streamers.put(streamer.getUuid(), System.nanoTime());
+        List<VideoRelay.Recipient> audience = audiences.get(streamer.getUuid());
+        if (audience == null) {
+            // Started streaming since the last tick
+            audience = compute(streamer);
+            audiences.put(streamer.getUuid(), audience);
+        }
+        return audience;
+    }
+
+    public static void remove(UUID playerUUID) {
+        streamers.remove(playerUUID);
+        audiences.remove(playerUUID);
+    }
+
+    public static void clear() {
+        streamers.clear();
+        grids.clear();
+        audiences.clear();
+    }
+
+    private static void rebuildGrids(MinecraftServer server) {
+        grids.clear();
+        for (ServerPlayerEntity player : server.getPlayerManager().getPlayerList()) {
+            // Players without the mod can't do anything with the frames
+            if (!ServerPlayNetworking.canSend(player, VideoFragmentPayload.ID)) {
+                continue;
+            }
+
+            long chunk = ChunkPos.toLong(player.getBlockX() >> 4, player.getBlockZ() >> 4);
+            grids.computeIfAbsent(player.getServerWorld(), (world) -> new HashMap<>())
+                    .computeIfAbsent(chunk, (key) -> new ArrayList<>())
+                    .add(player);
+        }
+    }
+
+    private static List<VideoRelay.Recipient> compute(ServerPlayerEntity streamer) {
+        HashMap<Long, List<ServerPlayerEntity>> grid = grids.get(streamer.getServerWorld());
+        if (grid == null) {
+            return List.of();
+        }
+
+        int radius = ServerConfig.radius;
+        double radiusSquared = (double) radius * radius;
+        int chunkX = streamer.getBlockX() >> 4;
+        int chunkZ = streamer.getBlockZ() >> 4;
+        int chunkRadius = (radius >> 4) + 1;
+        List<VideoRelay.Recipient> recipients = new ArrayList<>();
+        for (int x = chunkX - chunkRadius; x <= chunkX + chunkRadius; x++) {
+            for (int z = chunkZ - chunkRadius; z <= chunkZ + chunkRadius; z++) {
+                List<ServerPlayerEntity> players = grid.get(ChunkPos.toLong(x, z));
+                if (players == null) {
+                    continue;
+                }
+
+                for (ServerPlayerEntity player : players) {
+                    // Do not send the video to the sender, they just sent it to the server duh.
+                    if (player == streamer || player.isRemoved()) {
+                        continue;
+                    }
+                    double distanceSquared = player.squaredDistanceTo(streamer);
+                    if (distanceSquared > radiusSquared) {
+                        continue;
+                    }
+
+                    // The further away the fewer frames, and none for players that aren't looking at the streamer.
+                    // Nobody can see the load test streamers, they go to everyone in range
+                    int tierDivisor = ServerConfig.frameDivisor(Math.sqrt(distanceSquared));
+                    int frameDivisor = streamer instanceof FakePlayer ? tierDivisor : Subscriptions.frameDivisor(player, streamer, tierDivisor);
+                    if (frameDivisor > 0) {
+                        recipients.add(new VideoRelay.Recipient(player, frameDivisor));
+                    }
+                }
+            }
+        }
+        return List.copyOf(recipients);
+    }
+}
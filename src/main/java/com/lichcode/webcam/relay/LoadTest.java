@@ -0,0 +1,220 @@
+package com.lichcode.webcam.relay;
+
+import com.lichcode.webcam.Video.PlayerVideo;
+import com.lichcode.webcam.Video.PlayerVideoPacketCodec;
+import com.lichcode.webcam.Video.TestPattern;
+import com.lichcode.webcam.VideoFragmentPayload;
+import com.lichcode.webcam.WebcamMod;
+import com.lichcode.webcam.config.ServerConfig;
+import com.mojang.authlib.GameProfile;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.fabricmc.fabric.api.entity.FakePlayer;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.text.Text;
+import net.minecraft.util.math.Vec3d;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Fake streamers standing around whoever started the test, sending test pattern keyframes in fragments that go
+ * through the same reassembly, validation, audience lookup and relay as the ones real players send.
+ * Afterwards it reports what the relay got through, how long frames took to get to the connections and what
+ * it did to the tick time, to find out how many streamers a server can take.
+ * The fake streamers aren't spawned, so no client can see them and every player with the mod in range gets
+ * their frames, as if everyone was looking at them.
+ * Only used on the server thread.
+ */
+public class LoadTest {
+    private static final int FRAME_SIZE = 200;
+    // The streamers loop through this many different frames
+    private static final int PATTERN_FRAMES = 64;
+
+    private static final LinkedHashMap<UUID, FakePlayer> streamers = new LinkedHashMap<>();
+    // Serialized like the client does it, ready to be split into fragments
+    private static byte[][] frames;
+    private static ServerCommandSource source;
+    private static int fps;
+    private static int width;
+    private static int height;
+    private static long ticks;
+    private static long endTick;
+    private static long framesSubmitted;
+    private static int nextFrameId;
+
+    // Relay counters and tick time from before the test
+    private static long startRelayed;
+    private static long startDropped;
+    private static long startPackets;
+    private static long startNanos;
+    private static long baselineTickNanos;
+    private static long tickNanosTotal;
+
+    public static boolean isRunning() {
+        return !streamers.isEmpty();
+    }
+
+    /**
+     * The fake streamer with this id, or null if there's no such streamer.
+     */
+    public static FakePlayer streamer(UUID uuid) {
+        return streamers.get(uuid);
+    }
+
+    public static void start(ServerCommandSource commandSource, int streamerCount, int seconds) throws IOException {
+        if (isRunning()) {
+            finish();
+        }
+
+        fps = ServerConfig.maxFps;
+        width = Math.min(FRAME_SIZE, ServerConfig.maxWidth);
+        height = Math.min(FRAME_SIZE, ServerConfig.maxHeight);
+        frames = serializeFrames(encodeFrames(width, height));
+
+        Vec3d center = commandSource.getPosition();
+        for (int i = 0; i < streamerCount; i++) {
+            // FakePlayer keeps every profile it ever saw, the same ids every run reuse those players
+            String name = "webcam-load-" + i;
+            GameProfile profile = new GameProfile(UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)), name);
+            FakePlayer streamer = FakePlayer.get(commandSource.getWorld(), profile);
+            double angle = Math.PI * 2 * i / streamerCount;
+            streamer.setPosition(center.x + Math.cos(angle) * 3, center.y, center.z + Math.sin(angle) * 3);
+            streamers.put(streamer.getUuid(), streamer);
+        }
+
+        source = commandSource;
+        ticks = 0;
+        endTick = seconds * 20L;
+        framesSubmitted = 0;
+        nextFrameId = 0;
+        startRelayed = VideoRelay.framesRelayed.get();
+        startDropped = VideoRelay.framesDropped.get();
+        startPackets = VideoRelay.packetsSent.get();
+        VideoRelay.relayLatency.reset();
+        startNanos = System.nanoTime();
+        baselineTickNanos = commandSource.getServer().getAverageNanosPerTick();
+        tickNanosTotal = 0;
+    }
+
+    public static void tick(MinecraftServer server) {
+        if (!isRunning()) {
+            return;
+        }
+
+        ticks++;
+        tickNanosTotal += server.getAverageNanosPerTick();
+        // How many frames each streamer should have sent by now
+        long due = ticks * fps / 20;
+        while (framesSubmitted < due * streamers.size()) {
+            byte[] frame = frames[(int) ((framesSubmitted / streamers.size()) % frames.length)];
+            int frameId = nextFrameId++;
+            for (FakePlayer streamer : streamers.values()) {
+                for (VideoFragmentPayload fragment : VideoFragmentPayload.split(streamer.getUuid(), frameId, Unpooled.wrappedBuffer(frame))) {
+                    WebcamMod.receiveFragment(streamer, fragment);
+                }
+                framesSubmitted++;
+            }
+        }
+
+        if (ticks >= endTick) {
+            finish();
+        }
+    }
+
+    /**
+     * Stops the test early, the results so far are still reported.
+     */
+    public static void stop() {
+        if (isRunning()) {
+            finish();
+        }
+    }
+
+    private static void finish() {
+        double seconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+        long relayed = VideoRelay.framesRelayed.get() - startRelayed;
+        long dropped = VideoRelay.framesDropped.get() - startDropped;
+        long packets = VideoRelay.packetsSent.get() - startPackets;
+        double tickMillis = ticks == 0 ? 0 : tickNanosTotal / (double) ticks / 1_000_000.0;
+
+        List<String> lines = List.of(
+                String.format("Load test: %d streamers at %d fps, %dx%d, for %.1fs", streamers.size(), fps, width, height, seconds),
+                String.format("Frames submitted %d, relayed %.1f/s, dropped %d", framesSubmitted, relayed / seconds, dropped),
+                String.format("Sent to viewers %.1f frames/s", packets / seconds),
+                String.format("Relay latency p50 %.1fms p99 %.1fms", VideoRelay.relayLatency.percentileMillis(0.5), VideoRelay.relayLatency.percentileMillis(0.99)),
+                String.format("Tick time %.2fms, %.2fms before the test", tickMillis, baselineTickNanos / 1_000_000.0));
+        for (String line : lines) {
+            WebcamMod.LOGGER.info(line);
+            if (source != null) {
+                source.sendFeedback(() -> Text.literal(line), false);
+            }
+        }
+
+        for (UUID streamerUUID : streamers.keySet()) {
+            WebcamMod.playerLeft(streamerUUID);
+        }
+        streamers.clear();
+        frames = null;
+        source = null;
+    }
+
+    private static byte[][] serializeFrames(byte[][] jpegs) {
+        byte[][] serialized = new byte[jpegs.length][];
+        for (int i = 0; i < jpegs.length; i++) {
+            // The receiver fills in who the frame belongs to
+            PlayerVideo video = new PlayerVideo(width, height, new UUID(0, 0));
+            video.setFrame(jpegs[i]);
+            ByteBuf buf = Unpooled.buffer();
+            PlayerVideoPacketCodec.PACKET_CODEC.encode(new PacketByteBuf(buf), video);
+            serialized[i] = new byte[buf.readableBytes()];
+            buf.readBytes(serialized[i]);
+        }
+        return serialized;
+    }
+
+    private static byte[][] encodeFrames(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        byte[] rgb = new byte[width * height * 3];
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        JPEGImageWriteParam params = new JPEGImageWriteParam(null);
+        params.setCompressionMode(JPEGImageWriteParam.MODE_EXPLICIT);
+        params.setCompressionQuality(0.7f);
+
+        byte[][] encoded = new byte[PATTERN_FRAMES][];
+        try {
+            for (int frame = 0; frame < PATTERN_FRAMES; frame++) {
+                TestPattern.fill(rgb, width, height, frame);
+                for (int i = 0; i < rgb.length; i += 3) {
+                    pixels[i] = rgb[i + 2];
+                    pixels[i + 1] = rgb[i + 1];
+                    pixels[i + 2] = rgb[i];
+                }
+
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                try (ImageOutputStream ios = ImageIO.createImageOutputStream(baos)) {
+                    writer.setOutput(ios);
+                    writer.write(null, new IIOImage(image, null, null), params);
+                }
+                encoded[frame] = baos.toByteArray();
+            }
+        } finally {
+            writer.dispose();
+        }
+        return encoded;
+    }
+}
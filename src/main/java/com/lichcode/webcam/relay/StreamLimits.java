@@ -0,0 +1,50 @@
+package com.lichcode.webcam.relay;
+
+import com.lichcode.webcam.config.ServerConfig;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Holds streamers to the maxFps and maxBytesPerSecond the server sent them. The mod stays within them on its own,
+ * this is for modified clients that don't. Every streamer has a budget of frames and one of bytes, each holding
+ * a second's worth and filling up at the limit. A frame may overdraw the byte budget, so a keyframe bigger
+ * than the average frame still gets through and the frames after it pay for it.
+ * Only used on the server thread.
+ */
+public class StreamLimits {
+    private static final HashMap<UUID, Budget> budgets = new HashMap<>();
+
+    private static class Budget {
+        double frames = ServerConfig.maxFps;
+        double bytes = ServerConfig.maxBytesPerSecond;
+        long lastNanos = System.nanoTime();
+    }
+
+    /**
+     * True when the streamer may send a frame of this size now, which is then taken from their budget.
+     */
+    public static boolean allow(UUID streamer, int bytes) {
+        Budget budget = budgets.computeIfAbsent(streamer, (uuid) -> new Budget());
+        long now = System.nanoTime();
+        double seconds = (now - budget.lastNanos) / 1_000_000_000.0;
+        budget.lastNanos = now;
+        budget.frames = Math.min(ServerConfig.maxFps, budget.frames + seconds * ServerConfig.maxFps);
+        budget.bytes = Math.min(ServerConfig.maxBytesPerSecond, budget.bytes + seconds * ServerConfig.maxBytesPerSecond);
+        if (budget.frames < 1 || budget.bytes <= 0) {
+            return false;
+        }
+
+        budget.frames--;
+        budget.bytes -= bytes;
+        return true;
+    }
+
+    public static void remove(UUID streamer) {
+        budgets.remove(streamer);
+    }
+
+    public static void clear() {
+        budgets.clear();
+    }
+}
@@ -0,0 +1,65 @@
+package com.lichcode.webcam.relay;
+
+import com.lichcode.webcam.config.ServerConfig;
+import net.minecraft.server.network.ServerPlayerEntity;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Which streams each player can actually see, as reported by their client.
+ * Visible streams are relayed by distance tier, streams seen in the last few seconds only as the occasional
+ * keyframe and heartbeats so they aren't blank when they come back into view, and everything else not at all.
+ * Players whose client never sent a subscription get everything nearby like before.
+ * Only used on the server thread.
+ */
+public class Subscriptions {
+    private static final HashMap<UUID, Subscription> subscriptions = new HashMap<>();
+
+    private static class Subscription {
+        Set<UUID> visible = Set.of();
+        // When each streamer was last reported visible
+        final HashMap<UUID, Long> lastVisible = new HashMap<>();
+    }
+
+    public static void update(ServerPlayerEntity viewer, List<UUID> visible) {
+        Subscription subscription = subscriptions.computeIfAbsent(viewer.getUuid(), (uuid) -> new Subscription());
+        long now = System.nanoTime();
+        subscription.visible = new HashSet<>(visible);
+        for (UUID streamer : visible) {
+            subscription.lastVisible.put(streamer, now);
+        }
+
+        long forgetBefore = now - TimeUnit.SECONDS.toNanos(ServerConfig.keepaliveSeconds);
+        subscription.lastVisible.values().removeIf((time) -> time < forgetBefore);
+    }
+
+    public static void remove(UUID viewer) {
+        subscriptions.remove(viewer);
+    }
+
+    public static void clear() {
+        subscriptions.clear();
+    }
+
+    /**
+     * The frame divisor the viewer gets the streamer's video at, or 0 if they shouldn't get it at all.
+     */
+    public static int frameDivisor(ServerPlayerEntity viewer, ServerPlayerEntity streamer, int tierDivisor) {
+        Subscription subscription = subscriptions.get(viewer.getUuid());
+        if (subscription == null || subscription.visible.contains(streamer.getUuid())) {
+            return tierDivisor;
+        }
+
+        Long lastVisible = subscription.lastVisible.get(streamer.getUuid());
+        if (lastVisible != null && System.nanoTime() - lastVisible < TimeUnit.SECONDS.toNanos(ServerConfig.keepaliveSeconds)) {
+            // keepaliveDivisor is at least 2, which means keyframes and heartbeats only, see VideoRelay
+            return Math.max(tierDivisor, ServerConfig.keepaliveDivisor);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,376 @@
+package com.lichcode.webcam.relay;
+
+import com.lichcode.webcam.KeyframeRequestPayload;
+import com.lichcode.webcam.Video.PlayerVideo;
+import com.lichcode.webcam.Video.PlayerVideoPacketCodec;
+import com.lichcode.webcam.VideoFragmentPayload;
+import com.lichcode.webcam.WebcamMod;
+import com.lichcode.webcam.metrics.LatencyHistogram;
+import com.lichcode.webcam.metrics.RateMeter;
+import com.lichcode.webcam.metrics.StageTimer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.network.packet.Packet;
+import net.minecraft.server.network.ServerPlayerEntity;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Forwards video frames from streamers to the players around them without doing the work on the server thread.
+ * Every frame is serialized and split into fragments once and the same packets are handed to every recipient.
+ * Far away recipients get no deltas, only the streamer's regular keyframes, see {@link com.lichcode.webcam.config.ServerConfig}.
+ * Recipients whose connection is backed up get fewer frames, see {@link ViewerConnection}.
+ */
+public class VideoRelay {
+    public static final AtomicLong framesRelayed = new AtomicLong();
+    public static final AtomicLong framesDropped = new AtomicLong();
+    public static final AtomicLong packetsSent = new AtomicLong();
+    public static final AtomicLong bytesSaved = new AtomicLong();
+    public static final AtomicLong packetsDecimated = new AtomicLong();
+    // From a frame arriving until it was handed to every recipient's connection, bytes are what was sent
+    public static final StageTimer relayTimer = new StageTimer("relay");
+    // The same, but never rolled over so the load test can report over the whole run
+    public static final LatencyHistogram relayLatency = new LatencyHistogram();
+    // How often held frames are retried when no new frames arrive
+    private static final long FLUSH_INTERVAL_MILLIS = 20;
+
+    // Frames of each sender waiting for the relay thread. A keyframe replaces everything before it, deltas queue
+    // up behind the frames they build on.
+    private static final ConcurrentHashMap<UUID, PendingFrames> pending = new ConcurrentHashMap<>();
+    // Deltas that can queue up per sender before the relay gives up on them and asks for a keyframe
+    private static final int MAX_PENDING_FRAMES = 16;
+    // Senders whose deltas were dropped, only touched by submit on the server thread
+    private static final Set<UUID> awaitingKeyframe = new HashSet<>();
+    private static final LinkedBlockingQueue<UUID> ready = new LinkedBlockingQueue<>();
+    private static volatile boolean running = false;
+    private static Thread thread;
+
+    // Don't ask a streamer for keyframes more often than this
+    private static final long KEYFRAME_REQUEST_INTERVAL_NANOS = 500_000_000L;
+    private static final ConcurrentHashMap<UUID, Long> lastKeyframeRequest = new ConcurrentHashMap<>();
+    // Who got each sender's previous frame, only touched by the relay thread
+    private static final HashMap<UUID, Set<UUID>> viewers = new HashMap<>();
+    // Frames relayed per sender, decides which frames decimated recipients get. Also the fragment frame ids, so
+    // it is kept when a player leaves: clients ignore ids older than the last frame they got from a player, and
+    // a player that rejoins starting over at 1 would stay blank for everyone still connected.
+    private static final HashMap<UUID, Long> frameCounters = new HashMap<>();
+    // Players that left, dropped from the relay thread's maps at the start of its next round
+    private static final ConcurrentLinkedQueue<UUID> removed = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentHashMap<UUID, ViewerConnection> connections = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<UUID, StreamerStats> streamers = new ConcurrentHashMap<>();
+
+    /**
+     * What a streamer sends to the server and what the server sends on to their viewers.
+     */
+    public static class StreamerStats {
+        public final RateMeter received = new RateMeter();
+        public final RateMeter sent = new RateMeter();
+        public volatile int viewers = 0;
+    }
+
+    /**
+     * A player that should get the frame, frameDivisor 1 gets every frame and 3 every third.
+     */
+    public record Recipient(ServerPlayerEntity player, int frameDivisor) {}
+
+    private record PendingFrame(ServerPlayerEntity sender, PlayerVideo video, List<Recipient> recipients, long submittedNanos) {}
+
+    private static class PendingFrames {
+        final ArrayList<PendingFrame> frames = new ArrayList<>();
+
+        /**
+         * Returns false when the frame is a delta that didn't fit, its tiles are lost.
+         */
+        boolean add(PendingFrame frame) {
+            PlayerVideo video = frame.video();
+            if (video.isKeyframe()) {
+                // Everything before a keyframe is useless
+                for (PendingFrame replaced : frames) {
+                    replaced.video().release();
+                    framesDropped.incrementAndGet();
+                    relayTimer.drop();
+                }
+                frames.clear();
+            } else if (video.isHeartbeat() && !frames.isEmpty()) {
+                // The queued frames already show the stream is alive
+                video.release();
+                return true;
+            } else if (frames.size() >= MAX_PENDING_FRAMES) {
+                return false;
+            }
+            frames.add(frame);
+            return true;
+        }
+    }
+
+    public static void start() {
+        if (running) {
+            return;
+        }
+
+        running = true;
+        thread = new Thread(VideoRelay::loop, "Webcam Relay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException ignored) {
+            }
+            thread = null;
+        }
+        pending.clear();
+        ready.clear();
+        removed.clear();
+        awaitingKeyframe.clear();
+        StreamLimits.clear();
+        viewers.clear();
+        lastKeyframeRequest.clear();
+        frameCounters.clear();
+        streamers.clear();
+        for (ViewerConnection connection : connections.values()) {
+            connection.close();
+        }
+        connections.clear();
+    }
+
+    public static Collection<ViewerConnection> connections() {
+        return connections.values();
+    }
+
+    public static Map<UUID, StreamerStats> streamers() {
+        return streamers;
+    }
+
+    /**
+     * Forgets a player that left, both as a streamer and as a viewer. Called on the server thread.
+     */
+    public static void remove(UUID playerUUID) {
+        streamers.remove(playerUUID);
+        awaitingKeyframe.remove(playerUUID);
+        StreamLimits.remove(playerUUID);
+        lastKeyframeRequest.remove(playerUUID);
+        PendingFrames frames = pending.remove(playerUUID);
+        if (frames != null) {
+            for (PendingFrame frame : frames.frames) {
+                frame.video().release();
+            }
+        }
+        removed.offer(playerUUID);
+    }
+
+    // The rest of remove, on the relay thread
+    private static void forgetRemoved() {
+        UUID playerUUID;
+        while ((playerUUID = removed.poll()) != null) {
+            viewers.remove(playerUUID);
+            for (Set<UUID> streamViewers : viewers.values()) {
+                streamViewers.remove(playerUUID);
+            }
+            ViewerConnection connection = connections.remove(playerUUID);
+            if (connection != null) {
+                connection.close();
+            }
+            for (ViewerConnection other : connections.values()) {
+                other.forget(playerUUID);
+            }
+        }
+    }
+
+    public static void submit(ServerPlayerEntity sender, PlayerVideo video, List<Recipient> recipients) {
+        if (!running || recipients.isEmpty()) {
+            video.release();
+            return;
+        }
+
+        UUID senderUUID = sender.getUuid();
+        // Heartbeats are tiny and don't count
+        if (!video.isHeartbeat() && !StreamLimits.allow(senderUUID, video.frameLength)) {
+            // Over the limits the server sent, anything building on this frame is useless too
+            awaitingKeyframe.add(senderUUID);
+            dropFrame(sender, video);
+            return;
+        }
+        if (video.isKeyframe()) {
+            awaitingKeyframe.remove(senderUUID);
+        } else if (video.frameType == PlayerVideo.DELTA && awaitingKeyframe.contains(senderUUID)) {
+            // Builds on a delta that was dropped
+            dropFrame(sender, video);
+            return;
+        }
+
+        PendingFrame frame = new PendingFrame(sender, video, recipients, System.nanoTime());
+        // Atomic with the relay thread taking the sender's frames
+        boolean[] created = {false};
+        boolean[] added = {false};
+        pending.compute(senderUUID, (uuid, frames) -> {
+            if (frames == null) {
+                frames = new PendingFrames();
+                created[0] = true;
+            }
+            added[0] = frames.add(frame);
+            return frames;
+        });
+        if (created[0]) {
+            // The relay thread picks the sender up once, with everything queued by then
+            ready.offer(senderUUID);
+        }
+        if (!added[0]) {
+            awaitingKeyframe.add(senderUUID);
+            dropFrame(sender, video);
+        }
+    }
+
+    private static void dropFrame(ServerPlayerEntity sender, PlayerVideo video) {
+        video.release();
+        framesDropped.incrementAndGet();
+        relayTimer.drop();
+        requestKeyframe(sender);
+    }
+
+    private static void loop() {
+        WebcamMod.LOGGER.info("Video relay started");
+        while (running) {
+            try {
+                UUID sender = ready.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                forgetRemoved();
+                PendingFrames frames = sender == null ? null : pending.remove(sender);
+                if (frames != null) {
+                    for (PendingFrame frame : frames.frames) {
+                        relay(frame);
+                    }
+                }
+                flushHeldFrames();
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                WebcamMod.LOGGER.error("Could not relay video frame", e);
+            }
+        }
+        WebcamMod.LOGGER.info("Video relay stopped");
+    }
+
+    private static void relay(PendingFrame frame) {
+        PlayerVideo video = frame.video();
+
+        long frameNumber = frameCounters.merge(video.playerUUID, 1L, Long::sum);
+
+        // Serialize and split the frame once, every recipient gets the same fragment packets
+        ByteBuf serialized = Unpooled.buffer();
+        PlayerVideoPacketCodec.PACKET_CODEC.encode(new PacketByteBuf(serialized), video);
+        video.release();
+        int size = serialized.readableBytes();
+        List<Packet<?>> packets = new ArrayList<>();
+        for (VideoFragmentPayload fragment : VideoFragmentPayload.split(video.playerUUID, (int) frameNumber, serialized)) {
+            packets.add(ServerPlayNetworking.createS2CPacket(fragment));
+        }
+        serialized.release();
+
+        Set<UUID> previousViewers = viewers.getOrDefault(video.playerUUID, Set.of());
+        Set<UUID> currentViewers = new HashSet<>();
+        boolean newViewer = false;
+        boolean keyframeWanted = false;
+        int sent = 0;
+        for (Recipient recipient : frame.recipients()) {
+            ServerPlayerEntity player = recipient.player();
+            if (player.isDisconnected()) {
+                continue;
+            }
+            currentViewers.add(player.getUuid());
+            boolean joined = !previousViewers.contains(player.getUuid());
+            // Decimated recipients wait for the next regular keyframe, asking for one would send it to everyone
+            newViewer |= joined && recipient.frameDivisor() == 1;
+
+            ViewerConnection connection = connections.computeIfAbsent(player.getUuid(), (uuid) -> new ViewerConnection(player));
+            // Respawning creates a new player entity
+            connection.player = player;
+            if (joined && video.frameType == PlayerVideo.DELTA) {
+                // They didn't get the frames this delta builds on
+                connection.skip(video.playerUUID);
+            }
+
+            // A delta only makes sense on top of the frame before it, so decimated recipients get no deltas at all,
+            // only the keyframes the streamer sends anyway, at most one every frameDivisor frames. They never ask
+            // for keyframes themselves, those would go to the full rate recipients too and cost them their deltas.
+            // Heartbeats are tiny and keep the stream alive.
+            if (recipient.frameDivisor() > 1) {
+                if (video.frameType == PlayerVideo.DELTA) {
+                    connection.skip(video.playerUUID);
+                    packetsDecimated.incrementAndGet();
+                    continue;
+                }
+                if (video.isKeyframe() && !connection.keyframeDue(video.playerUUID, frameNumber, recipient.frameDivisor())) {
+                    packetsDecimated.incrementAndGet();
+                    continue;
+                }
+            }
+            // A viewer that missed deltas needs a keyframe
+            keyframeWanted |= connection.offer(video.playerUUID, packets, size, video.frameType);
+            sent++;
+        }
+        viewers.put(video.playerUUID, currentViewers);
+        if (keyframeWanted || (newViewer && !video.isKeyframe())) {
+            requestKeyframe(frame.sender());
+        }
+
+        long latency = System.nanoTime() - frame.submittedNanos();
+        relayTimer.record(latency, (long) size * sent);
+        relayLatency.record(latency);
+        StreamerStats stats = streamers.computeIfAbsent(video.playerUUID, (uuid) -> new StreamerStats());
+        stats.received.add(1, size);
+        stats.sent.add(sent, (long) size * sent);
+        stats.viewers = currentViewers.size();
+        framesRelayed.incrementAndGet();
+        packetsSent.addAndGet(sent);
+        if (sent > 1) {
+            bytesSaved.addAndGet((long) size * (sent - 1));
+        }
+    }
+
+    private static void flushHeldFrames() {
+        Iterator<ViewerConnection> iterator = connections.values().iterator();
+        while (iterator.hasNext()) {
+            ViewerConnection connection = iterator.next();
+            if (connection.player.isDisconnected()) {
+                connection.close();
+                iterator.remove();
+            } else if (connection.hasHeldFrames()) {
+                connection.flush();
+            }
+        }
+    }
+
+    // Called from both the server and the relay thread
+    private static void requestKeyframe(ServerPlayerEntity sender) {
+        long now = System.nanoTime();
+        Long lastRequest = lastKeyframeRequest.get(sender.getUuid());
+        if (lastRequest != null && now - lastRequest < KEYFRAME_REQUEST_INTERVAL_NANOS) {
+            return;
+        }
+
+        lastKeyframeRequest.put(sender.getUuid(), now);
+        if (!sender.isDisconnected() && ServerPlayNetworking.canSend(sender, KeyframeRequestPayload.ID)) {
+            ServerPlayNetworking.send(sender, KeyframeRequestPayload.INSTANCE);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.lichcode.webcam.relay;
+
+import com.lichcode.webcam.Video.PlayerVideo;
+import com.lichcode.webcam.config.ServerConfig;
+import com.lichcode.webcam.mixin.ClientConnectionAccessor;
+import com.lichcode.webcam.mixin.ServerCommonNetworkHandlerAccessor;
+import io.netty.channel.Channel;
+import net.minecraft.network.ClientConnection;
+import net.minecraft.network.PacketCallbacks;
+import net.minecraft.network.packet.Packet;
+import net.minecraft.server.network.ServerPlayerEntity;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Flow control for the video going to one player. While their connection is backed up, either because Netty
+ * says the channel isn't writable or because too much video is still waiting to be written, frames are held
+ * back instead of queued. Only one held frame of each streamer is kept, so a slow player gets fewer
+ * frames instead of an ever growing backlog in front of their gameplay packets.
+ * A delta only makes sense on top of the frame before it, so once one of a streamer's deltas is thrown away the
+ * player gets nothing but heartbeats from that streamer until their next keyframe.
+ * Everything but the byte counter and the frame counts is only touched by the relay thread.
+ */
+public class ViewerConnection {
+    public final UUID playerUUID;
+    public ServerPlayerEntity player;
+    public final AtomicLong queuedBytes = new AtomicLong();
+    // Only written by the relay thread, read for /webcam stats
+    public volatile long framesSent = 0;
+    public volatile long framesDropped = 0;
+    // The frame of each streamer that couldn't be sent yet
+    private final HashMap<UUID, HeldFrame> held = new HashMap<>();
+    // Streamers whose deltas the player missed, they need a keyframe before anything else makes sense
+    private final Set<UUID> needsKeyframe = new HashSet<>();
+    // Frame number of the last keyframe of each streamer that went to a decimated player
+    private final HashMap<UUID, Long> lastKeyframes = new HashMap<>();
+
+    // All fragments of a frame go out together, half a frame is no use to anyone
+    private record HeldFrame(List<Packet<?>> packets, int size, byte frameType) {}
+
+    public ViewerConnection(ServerPlayerEntity player) {
+        this.playerUUID = player.getUuid();
+        this.player = player;
+    }
+
+    /**
+     * True when more video shouldn't be written to the player right now.
+     */
+    public boolean isBackedUp() {
+        if (queuedBytes.get() > ServerConfig.maxQueuedBytes) {
+            return true;
+        }
+
+        Channel channel = channel();
+        return channel != null && !channel.isWritable();
+    }
+
+    /**
+     * Sends the frame or holds it until the connection catches up.
+     * Returns true when the player is missing deltas of the streamer and is waiting for a keyframe.
+     */
+    public boolean offer(UUID streamer, List<Packet<?>> packets, int size, byte frameType) {
+        if (frameType == PlayerVideo.KEYFRAME) {
+            needsKeyframe.remove(streamer);
+        } else if (frameType == PlayerVideo.DELTA && needsKeyframe.contains(streamer)) {
+            drop();
+            return true;
+        }
+
+        if (held.isEmpty() && !isBackedUp()) {
+            send(packets, size);
+            return false;
+        }
+
+        HeldFrame previous = held.get(streamer);
+        if (previous != null && frameType != PlayerVideo.KEYFRAME) {
+            // A heartbeat says nothing the held frame doesn't. A delta would replace a frame it builds on,
+            // so it is thrown away instead and the player waits for the next keyframe.
+            if (frameType == PlayerVideo.DELTA) {
+                needsKeyframe.add(streamer);
+                drop();
+                return true;
+            }
+            return false;
+        }
+        if (previous != null) {
+            drop();
+        }
+        held.put(streamer, new HeldFrame(packets, size, frameType));
+        return false;
+    }
+
+    /**
+     * Called for a delta of the streamer the player doesn't get, the streamer's deltas stop until the next keyframe.
+     */
+    public void skip(UUID streamer) {
+        needsKeyframe.add(streamer);
+    }
+
+    /**
+     * For players that get the streamer's video at a divisor: true when a keyframe is due, at most one every
+     * divisor frames. Assumes the keyframe is then offered.
+     */
+    public boolean keyframeDue(UUID streamer, long frameNumber, int divisor) {
+        Long last = lastKeyframes.get(streamer);
+        if (last != null && frameNumber - last < divisor) {
+            return false;
+        }
+        lastKeyframes.put(streamer, frameNumber);
+        return true;
+    }
+
+    /**
+     * Sends held frames while the connection has room for them.
+     */
+    public void flush() {
+        Iterator<HeldFrame> iterator = held.values().iterator();
+        while (iterator.hasNext() && !isBackedUp()) {
+            HeldFrame frame = iterator.next();
+            iterator.remove();
+            send(frame.packets(), frame.size());
+        }
+    }
+
+    public boolean hasHeldFrames() {
+        return !held.isEmpty();
+    }
+
+    /**
+     * Drops everything kept for a streamer that left.
+     */
+    public void forget(UUID streamer) {
+        held.remove(streamer);
+        needsKeyframe.remove(streamer);
+        lastKeyframes.remove(streamer);
+    }
+
+    public void close() {
+        held.clear();
+        needsKeyframe.clear();
+        lastKeyframes.clear();
+    }
+
+    private void drop() {
+        framesDropped++;
+        VideoRelay.relayTimer.drop();
+    }
+
+    private void send(List<Packet<?>> packets, int size) {
+        queuedBytes.addAndGet(size);
+        for (int i = 0; i < packets.size(); i++) {
+            // The bytes count as queued until the last fragment is written
+            if (i == packets.size() - 1) {
+                player.networkHandler.send(packets.get(i), PacketCallbacks.always(() -> queuedBytes.addAndGet(-size)));
+            } else {
+                player.networkHandler.send(packets.get(i));
+            }
+        }
+        framesSent++;
+    }
+
+    private Channel channel() {
+        ClientConnection connection = ((ServerCommonNetworkHandlerAccessor) player.networkHandler).webcam$getConnection();
+        return connection == null ? null : ((ClientConnectionAccessor) connection).webcam$getChannel();
+    }
+}